@@ -0,0 +1,46 @@
+package de.intranda.goobi.plugins;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.Getter;
+import ugh.dl.Metadata;
+
+/**
+ * Records the metadata added and removed during a run. Metadata that is removed and added again with the same type, value and authority data
+ * does not count as change, so regenerating identical fields does not require to write the METS file.
+ */
+class ChangeTracker {
+
+    // difference between added and removed metadata per type, value and authority data
+    private final Map<String, Integer> balance = new HashMap<>();
+
+    @Getter
+    private int added;
+    @Getter
+    private int removed;
+
+    synchronized void added(Metadata md) {
+        added++;
+        balance.merge(createKey(md), 1, Integer::sum);
+    }
+
+    synchronized void removed(Metadata md) {
+        removed++;
+        balance.merge(createKey(md), -1, Integer::sum);
+    }
+
+    /**
+     * Check if the metadata was changed
+     *
+     * @return true if any metadata was added or removed without being replaced by an identical one
+     */
+    synchronized boolean hasChanges() {
+        return balance.values().stream().anyMatch(count -> count != 0);
+    }
+
+    private static String createKey(Metadata md) {
+        return String.join("\u0000", md.getType().getName(), String.valueOf(md.getValue()), String.valueOf(md.getAuthorityID()),
+                String.valueOf(md.getAuthorityURI()), String.valueOf(md.getAuthorityValue()));
+    }
+}
@@ -0,0 +1,229 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.intranda.goobi.plugins.RequestLimiter.RemoteCall;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Protects the step from a slow or unavailable remote service. Each call is limited by a timeout and by the time left for the current process.
+ * After a number of failed calls in a row the circuit is opened, and all calls fail immediately until the configured time has passed. Then a
+ * single trial call decides whether the circuit is closed again. Breakers are shared within the JVM like the {@link RequestLimiter}.
+ */
+@Log4j2
+class CircuitBreaker {
+
+    /** deadline of a process without time limit */
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    // runs the calls with a timeout. The HTTP clients of the vocabulary API and the norm data importer have no configurable read timeout, so a
+    // call that does not react to the interruption keeps its thread until it is finished. It does not keep its slot of the limiter, and the
+    // number of such threads is limited, as the circuit opens after the configured number of timeouts in a row.
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "metadata-replacement-remote-call");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String remote;
+    private final BreakerSettings settings;
+
+    private int failures;
+    // time when the circuit was opened, 0 while the circuit is closed
+    private long openedAt;
+    private boolean trialRunning;
+
+    private CircuitBreaker(String remote, BreakerSettings settings) {
+        this.remote = remote;
+        this.settings = settings;
+    }
+
+    /**
+     * Get the breaker of a remote service. If the configured settings have changed, a new breaker replaces the old one.
+     *
+     * @param remote name of the remote service
+     * @param settings the breaker settings from the plugin configuration
+     * @return the breaker
+     */
+    static CircuitBreaker forRemote(String remote, BreakerSettings settings) {
+        return BREAKERS.compute(remote, (k, existing) -> existing != null && existing.settings.equals(settings) ? existing
+                : new CircuitBreaker(remote, settings));
+    }
+
+    /**
+     * Get the deadline for a process starting now
+     *
+     * @param seconds the time limit of the process, 0 for no limit
+     * @return the deadline as returned by {@link System#nanoTime()}
+     */
+    static long getDeadline(long seconds) {
+        return seconds <= 0 ? NO_DEADLINE : System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    /**
+     * Run a request within the limits of the remote service. The time waiting for the limiter is only limited by the deadline of the process and
+     * does not count as a failure of the remote service.
+     *
+     * @param limiter the limiter of the remote service
+     * @param request the request to run
+     * @param timeout maximum duration of the request in seconds after it was started, 0 for no limit
+     * @param deadline deadline of the current process, as returned by {@link #getDeadline(long)}
+     * @return the result of the request
+     * @throws RemoteUnavailableException if the circuit is open, the request failed or did not finish in time
+     */
+    <T> T call(RequestLimiter limiter, RemoteCall<T, ? extends Exception> request, long timeout, long deadline)
+            throws RemoteUnavailableException {
+        if (getRemainingMillis(deadline) <= 0) {
+            throw new RemoteUnavailableException("The time limit of the process is exceeded, " + remote + " is not requested");
+        }
+        if (!allowRequest()) {
+            throw new RemoteUnavailableException("The circuit of " + remote + " is open");
+        }
+        acquire(limiter, deadline);
+        // the slot is given back when the request finishes or, if it does not react to the timeout, when the caller stops waiting for it
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                limiter.release();
+            }
+        };
+        long timeoutMillis = timeout <= 0 ? Long.MAX_VALUE : TimeUnit.SECONDS.toMillis(timeout);
+        long waitMillis = Math.min(timeoutMillis, getRemainingMillis(deadline));
+        if (waitMillis == Long.MAX_VALUE) {
+            try {
+                return callWithoutTimeout(request);
+            } finally {
+                release.run();
+            }
+        }
+        Future<T> future = EXECUTOR.submit(() -> {
+            try {
+                return request.call();
+            } finally {
+                release.run();
+            }
+        });
+        try {
+            T result = future.get(Math.max(1, waitMillis), TimeUnit.MILLISECONDS);
+            recordSuccess();
+            return result;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            release.run();
+            // a request stopped by the deadline of the process does not indicate a problem of the remote service
+            if (waitMillis == timeoutMillis) {
+                recordFailure();
+            } else {
+                recordAborted();
+            }
+            throw new RemoteUnavailableException("No response from " + remote + " within " + waitMillis + " ms");
+        } catch (ExecutionException e) {
+            recordFailure();
+            throw new RemoteUnavailableException("Request to " + remote + " failed: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            release.run();
+            recordAborted();
+            Thread.currentThread().interrupt();
+            throw new RemoteUnavailableException("Request to " + remote + " was interrupted", e);
+        }
+    }
+
+    private void acquire(RequestLimiter limiter, long deadline) throws RemoteUnavailableException {
+        try {
+            if (!limiter.tryAcquire(getRemainingMillis(deadline))) {
+                recordAborted();
+                throw new RemoteUnavailableException("The time limit of the process is exceeded while waiting for a request to " + remote);
+            }
+        } catch (InterruptedException e) {
+            recordAborted();
+            Thread.currentThread().interrupt();
+            throw new RemoteUnavailableException("Waiting for a request to " + remote + " was interrupted", e);
+        }
+    }
+
+    private <T> T callWithoutTimeout(RemoteCall<T, ? extends Exception> request) throws RemoteUnavailableException {
+        try {
+            T result = request.call();
+            recordSuccess();
+            return result;
+        } catch (Exception e) {
+            recordFailure();
+            throw new RemoteUnavailableException("Request to " + remote + " failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static long getRemainingMillis(long deadline) {
+        return deadline == NO_DEADLINE ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    }
+
+    private synchronized boolean allowRequest() {
+        if (openedAt == 0) {
+            return true;
+        }
+        if (trialRunning || System.currentTimeMillis() - openedAt < TimeUnit.SECONDS.toMillis(settings.openDuration())) {
+            return false;
+        }
+        trialRunning = true;
+        return true;
+    }
+
+    private synchronized void recordSuccess() {
+        if (openedAt != 0) {
+            log.info("Circuit of {} is closed again", remote);
+        }
+        failures = 0;
+        openedAt = 0;
+        trialRunning = false;
+    }
+
+    private synchronized void recordFailure() {
+        failures++;
+        // a failed trial opens the circuit again
+        if (trialRunning || openedAt == 0 && failures >= settings.failureThreshold()) {
+            if (openedAt == 0) {
+                log.warn("Circuit of {} is opened after {} failed requests", remote, failures);
+            }
+            openedAt = System.currentTimeMillis();
+        }
+        trialRunning = false;
+    }
+
+    private synchronized void recordAborted() {
+        trialRunning = false;
+    }
+
+    /**
+     * Settings of the circuit breakers
+     *
+     * @param failureThreshold number of failed requests in a row that open the circuit
+     * @param openDuration seconds until a trial request is allowed after the circuit was opened
+     */
+    record BreakerSettings(int failureThreshold, long openDuration) {
+    }
+
+    /**
+     * A remote service was not requested or did not answer in time
+     */
+    static class RemoteUnavailableException extends Exception {
+        private static final long serialVersionUID = 2318436914562104417L;
+
+        RemoteUnavailableException(String message) {
+            super(message);
+        }
+
+        RemoteUnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
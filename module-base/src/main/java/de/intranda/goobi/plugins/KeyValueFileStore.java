@@ -0,0 +1,234 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Simple persistent key value store. All values are held in memory, every change is appended to a text file. When the file is loaded, only the
+ * last value of each key is used and the file is compacted, if it contains too many outdated lines. By default the file is opened for each
+ * change, after {@link #open()} it is kept open until the store is closed, e.g. for the many changes of a batch.
+ */
+@Log4j2
+class KeyValueFileStore implements Closeable {
+
+    private final Path file;
+    private final Map<String, StoredValue> values = new ConcurrentHashMap<>();
+    // writer kept open between open() and close()
+    private BufferedWriter openWriter;
+
+    KeyValueFileStore(Path file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Get a stored value
+     *
+     * @param key the key
+     * @return the value and the time it was stored, or null if the key is unknown
+     */
+    StoredValue get(String key) {
+        return values.get(key);
+    }
+
+    /**
+     * Store a value and append it to the file
+     *
+     * @param key the key
+     * @param value the value, can be null
+     */
+    synchronized void put(String key, String value) {
+        StoredValue storedValue = new StoredValue(value, System.currentTimeMillis());
+        values.put(key, storedValue);
+        append(List.of(toLine(key, storedValue)));
+    }
+
+    /**
+     * Store several values at once and append them to the file
+     *
+     * @param newValues the values by key, values can be null
+     */
+    synchronized void putAll(Map<String, String> newValues) {
+        long timestamp = System.currentTimeMillis();
+        List<String> lines = new ArrayList<>(newValues.size());
+        for (Map.Entry<String, String> e : newValues.entrySet()) {
+            StoredValue storedValue = new StoredValue(e.getValue(), timestamp);
+            values.put(e.getKey(), storedValue);
+            lines.add(toLine(e.getKey(), storedValue));
+        }
+        append(lines);
+    }
+
+    /**
+     * Remove a value
+     *
+     * @param key the key
+     */
+    synchronized void remove(String key) {
+        if (values.remove(key) != null) {
+            // a line without timestamp marks a removed key
+            append(List.of(escape(key)));
+        }
+    }
+
+    /**
+     * Keep the file open for the following changes. Each change is still flushed, so it is kept if the JVM stops.
+     */
+    synchronized void open() throws IOException {
+        if (openWriter == null) {
+            openWriter = openFile();
+        }
+    }
+
+    /**
+     * Close the file kept open by {@link #open()}, later changes open the file again
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (openWriter != null) {
+            try {
+                openWriter.close();
+            } finally {
+                openWriter = null;
+            }
+        }
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    /**
+     * Pass all stored values to the consumer
+     *
+     * @param consumer receives key and value
+     */
+    void forEach(BiConsumer<String, StoredValue> consumer) {
+        values.forEach(consumer);
+    }
+
+    private void append(List<String> lines) {
+        try {
+            if (openWriter != null) {
+                write(openWriter, lines);
+                openWriter.flush();
+            } else {
+                try (BufferedWriter writer = openFile()) {
+                    write(writer, lines);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Cannot write to {}", file, e);
+        }
+    }
+
+    private BufferedWriter openFile() throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        return Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static void write(BufferedWriter writer, List<String> lines) throws IOException {
+        for (String line : lines) {
+            writer.write(line);
+            writer.newLine();
+        }
+    }
+
+    private synchronized void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.error("Cannot read {}", file, e);
+            return;
+        }
+        for (String line : lines) {
+            String[] parts = line.split("\t", -1);
+            String key = unescape(parts[0]);
+            if (parts.length < 3) {
+                values.remove(key);
+            } else {
+                try {
+                    values.put(key, new StoredValue(parts[2].isEmpty() ? null : unescape(parts[2].substring(1)), Long.parseLong(parts[1])));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignore invalid line in {}: {}", file, line);
+                }
+            }
+        }
+        if (lines.size() > values.size() * 2 + 100) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, StoredValue> e : values.entrySet()) {
+                writer.write(toLine(e.getKey(), e.getValue()));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            log.error("Cannot write {}", temporaryFile, e);
+            return;
+        }
+        try {
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Cannot replace {}", file, e);
+        }
+    }
+
+    private static String toLine(String key, StoredValue storedValue) {
+        // values are prefixed with a marker to distinguish empty values from null values
+        String value = storedValue.value() == null ? "" : "=" + escape(storedValue.value());
+        return escape(key) + "\t" + storedValue.timestamp() + "\t" + value;
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                switch (next) {
+                    case 't' -> sb.append('\t');
+                    case 'n' -> sb.append('\n');
+                    case 'r' -> sb.append('\r');
+                    default -> sb.append(next);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A stored value
+     *
+     * @param value the value, can be null
+     * @param timestamp time in milliseconds when the value was stored
+     */
+    record StoredValue(String value, long timestamp) {
+    }
+}
@@ -0,0 +1,372 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.StringUtils;
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+
+import de.intranda.goobi.plugins.KeyValueFileStore.StoredValue;
+import de.intranda.goobi.plugins.YerushaMetadataReplacementPlugin.ReplacementConfiguration;
+import de.intranda.goobi.plugins.YerushaMetadataReplacementPlugin.ReplacementEntry;
+import de.sub.goobi.config.ConfigPlugins;
+import de.sub.goobi.helper.FilterHelper;
+import de.sub.goobi.persistence.managers.ProcessManager;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.Fileformat;
+
+/**
+ * Runs the metadata replacement for all processes matching a filter, e.g. to apply a corrected vocabulary to existing processes. It is called
+ * by the GoobiScript {@link MetadataReplacementGoobiScript} or can be called from a REST endpoint:
+ *
+ * <pre>
+ * new MetadataReplacementBatch(BatchSettings.read()).run("project:Yerusha");
+ * </pre>
+ *
+ * Each process passes three stages: the METS file is read, the metadata is replaced and the METS file is written. Reading and writing run on
+ * their own threads, so the workers replacing the metadata do not wait for the file system. All processes share the lookup cache, the
+ * resolved vocabularies and the VIAF cache. Finished processes are recorded in a checkpoint file, so an interrupted batch continues with the
+ * remaining processes when it is started again.
+ */
+@Log4j2
+public class MetadataReplacementBatch {
+
+    private static final String TITLE = "intranda_step_metadata_replacement";
+
+    private final BatchSettings settings;
+
+    // vocabularies resolved by any process of the batch, one per replacement entry
+    private final Map<ReplacementEntry, ResolvedVocabulary> resolvedVocabularies = new ConcurrentHashMap<>();
+
+    // VIAF resolver and cache of all processes of the batch, one per configured VIAF settings
+    private final Map<ViafIdCache.ViafSettings, ViafIdCache> viafIdCaches = new ConcurrentHashMap<>();
+
+    // status of each process of the last run
+    private final Map<Integer, String> processStatus = new ConcurrentHashMap<>();
+
+    private final Map<ProcessStatus, AtomicInteger> counters = new ConcurrentHashMap<>();
+    // processes changed with fallback values, because remote services were not available
+    private final AtomicInteger incomplete = new AtomicInteger();
+
+    private volatile boolean cancelled;
+
+    public MetadataReplacementBatch(BatchSettings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Run the replacement for all matching processes. The method returns when all processes are finished.
+     *
+     * @param filter the process filter, as used in the process list and in GoobiScript
+     * @return the number of processes per status
+     */
+    public BatchResult run(String filter) {
+        // the filter is converted to the SQL condition of the process list, templates are excluded
+        String query = FilterHelper.criteriaBuilder(filter, false, null, null, null, true, false);
+        return run(ProcessManager.getIdsForFilter(query));
+    }
+
+    /**
+     * Run the replacement for the given processes, e.g. the processes selected for a GoobiScript. The method returns when all processes are
+     * finished.
+     *
+     * @param ids the IDs of the processes
+     * @return the number of processes per status
+     */
+    public BatchResult run(List<Integer> ids) {
+        return run(ids, false, true);
+    }
+
+    /**
+     * Get the status of a process of the last run
+     *
+     * @param id the ID of the process
+     * @return CHANGED, UNCHANGED, SKIPPED, RESUMED or FAILED, null if the process was not part of the run or not started
+     */
+    public String getProcessStatus(Integer id) {
+        return processStatus.get(id);
+    }
+
+    /**
+     * Run the replacement only for the processes containing values of a vocabulary, whose records were changed since the last check. The changes
+     * are searched for each configuration block with enabled reverse index and each search field used with the vocabulary. The first check
+     * only stores the current state of the vocabulary. The checkpoint file is neither read nor written, the affected processes are always
+     * processed. The new state is only stored, if all affected processes were changed without errors and fallback values, otherwise the next
+     * run processes them again.
+     *
+     * @param vocabulary the name of the vocabulary
+     * @return the number of processes per status
+     */
+    public BatchResult runForChangedVocabulary(String vocabulary) {
+        Set<Integer> ids = new TreeSet<>();
+        Set<String> checked = new HashSet<>();
+        List<VocabularyChangeDetector.Changes> pendingChanges = new ArrayList<>();
+        for (HierarchicalConfiguration block : ConfigPlugins.getPluginConfig(TITLE).configurationsAt("config")) {
+            ReplacementConfiguration configuration = new ReplacementConfiguration(block, 0);
+            if (!configuration.isReverseIndexEnabled()) {
+                continue;
+            }
+            Path directory = configuration.getReverseIndexDirectory();
+            for (ReplacementEntry entry : configuration.getEntryList()) {
+                if (!vocabulary.equals(entry.getVocabulary()) || !checked.add(directory + "\u0000" + entry.getContentSearch())) {
+                    continue;
+                }
+                ResolvedVocabulary resolved = new ResolvedVocabulary(entry);
+                if (resolved.isSearchable()) {
+                    VocabularyChangeDetector.Changes changes =
+                            VocabularyChangeDetector.findChangedValues(resolved, configuration.getPrefetchSettings(), directory);
+                    pendingChanges.add(changes);
+                    ids.addAll(ReverseValueIndex.forDirectory(directory).getProcesses(vocabulary, entry.getContentSearch(), changes.getValues()));
+                }
+            }
+        }
+        log.info("{} processes are affected by changes in vocabulary {}", ids.size(), vocabulary);
+        // the checkpoint file of a full batch would skip the affected processes, so this run cannot be resumed
+        BatchResult result = run(new ArrayList<>(ids), true, false);
+        // the changes are reported again by the next check, until all affected processes got the current values
+        if (cancelled || result.failed() > 0 || incomplete.get() > 0) {
+            log.warn("Not all processes affected by changes in vocabulary {} were changed, the changes are kept for the next run", vocabulary);
+        } else {
+            pendingChanges.forEach(VocabularyChangeDetector.Changes::apply);
+        }
+        return result;
+    }
+
+    private BatchResult run(List<Integer> ids, boolean ignoreFingerprint, boolean resumable) {
+        KeyValueFileStore checkpoint = !resumable || settings.checkpointFile() == null ? null : new KeyValueFileStore(settings.checkpointFile());
+        if (checkpoint != null) {
+            try {
+                // each finished process is recorded, so the file is kept open for the whole batch
+                checkpoint.open();
+            } catch (IOException e) {
+                log.error("Cannot open checkpoint file {}", settings.checkpointFile(), e);
+            }
+        }
+        processStatus.clear();
+        for (ProcessStatus status : ProcessStatus.values()) {
+            counters.put(status, new AtomicInteger());
+        }
+        incomplete.set(0);
+        log.info("Metadata replacement started for {} processes with {} workers", ids.size(), settings.workers());
+        long start = System.currentTimeMillis();
+
+        ExecutorService ioExecutor = Executors.newFixedThreadPool(settings.ioThreads());
+        ExecutorService workerExecutor = Executors.newFixedThreadPool(settings.workers());
+        // limit the number of processes held in memory
+        int maxInFlight = settings.workers() * 2 + settings.ioThreads();
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        AtomicInteger finished = new AtomicInteger();
+        try {
+            for (Integer id : ids) {
+                if (cancelled) {
+                    break;
+                }
+                if (checkpoint != null && isFinished(checkpoint.get(String.valueOf(id)))) {
+                    counters.get(ProcessStatus.RESUMED).incrementAndGet();
+                    processStatus.put(id, ProcessStatus.RESUMED.name());
+                    finished.incrementAndGet();
+                    continue;
+                }
+                inFlight.acquireUninterruptibly();
+                CompletableFuture.supplyAsync(() -> read(id, ignoreFingerprint), ioExecutor)
+                        .thenApplyAsync(this::replace, workerExecutor)
+                        .thenApplyAsync(this::write, ioExecutor)
+                        .whenComplete((status, error) -> {
+                            ProcessStatus result = status;
+                            if (error != null) {
+                                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                                log.error("Metadata replacement failed for process {}", id, cause);
+                                result = ProcessStatus.FAILED;
+                            }
+                            counters.get(result).incrementAndGet();
+                            processStatus.put(id, result.name());
+                            if (checkpoint != null) {
+                                checkpoint.put(String.valueOf(id), result.name());
+                            }
+                            logProgress(finished.incrementAndGet(), ids.size(), start);
+                            inFlight.release();
+                        });
+            }
+            // wait until all started processes are finished
+            inFlight.acquireUninterruptibly(maxInFlight);
+        } finally {
+            ioExecutor.shutdown();
+            workerExecutor.shutdown();
+            closeCheckpoint(checkpoint);
+        }
+
+        BatchResult result = new BatchResult(ids.size(), counters.get(ProcessStatus.CHANGED).get(), counters.get(ProcessStatus.UNCHANGED).get(),
+                counters.get(ProcessStatus.SKIPPED).get(), counters.get(ProcessStatus.RESUMED).get(), counters.get(ProcessStatus.FAILED).get(),
+                System.currentTimeMillis() - start);
+        log.info("Metadata replacement {}: {}", cancelled ? "cancelled" : "finished", result);
+        return result;
+    }
+
+    /**
+     * Stop the batch. Processes already started are finished, the remaining ones are left for the next run.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void closeCheckpoint(KeyValueFileStore checkpoint) {
+        if (checkpoint != null) {
+            try {
+                checkpoint.close();
+            } catch (IOException e) {
+                log.error("Cannot close checkpoint file {}", settings.checkpointFile(), e);
+            }
+        }
+    }
+
+    private ProcessJob read(Integer id, boolean ignoreFingerprint) {
+        try {
+            Process process = ProcessManager.getProcessById(id);
+            YerushaMetadataReplacementPlugin plugin = new YerushaMetadataReplacementPlugin();
+            plugin.initialize(findStep(process), "");
+            plugin.shareResolvedVocabularies(resolvedVocabularies);
+            plugin.shareViafIdCaches(viafIdCaches);
+            plugin.setIgnoreFingerprint(ignoreFingerprint);
+            return new ProcessJob(plugin, plugin.readMetadataFile());
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private ProcessJob replace(ProcessJob job) {
+        try {
+            job.replaced = job.plugin.replaceMetadata(job.fileformat);
+            if (job.plugin.hasFallbacks()) {
+                incomplete.incrementAndGet();
+            }
+            return job;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private ProcessStatus write(ProcessJob job) {
+        if (!job.replaced) {
+            return ProcessStatus.SKIPPED;
+        }
+        try {
+            return job.plugin.saveMetadataFile(job.fileformat) ? ProcessStatus.CHANGED : ProcessStatus.UNCHANGED;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * The configuration is selected by project and step title. If the process does not contain the step, a step with the configured title is
+     * used.
+     */
+    private Step findStep(Process process) {
+        if (process.getSchritte() != null) {
+            for (Step step : process.getSchritte()) {
+                if (StringUtils.equals(step.getTitel(), settings.stepTitle())) {
+                    return step;
+                }
+            }
+        }
+        Step step = new Step();
+        step.setTitel(settings.stepTitle());
+        step.setProzess(process);
+        return step;
+    }
+
+    private void logProgress(int finished, int total, long start) {
+        if (finished % settings.progressInterval() != 0 && finished != total) {
+            return;
+        }
+        long duration = Math.max(1, System.currentTimeMillis() - start);
+        double throughput = finished * 1000d / duration;
+        long remaining = throughput > 0 ? (long) ((total - finished) / throughput) : 0;
+        log.info("Metadata replacement: {}/{} processes, {} changed, {} failed, {} processes/s, about {} s remaining", finished, total,
+                counters.get(ProcessStatus.CHANGED).get(), counters.get(ProcessStatus.FAILED).get(), String.format("%.1f", throughput), remaining);
+    }
+
+    private static boolean isFinished(StoredValue storedValue) {
+        return storedValue != null && !ProcessStatus.FAILED.name().equals(storedValue.value());
+    }
+
+    private static class ProcessJob {
+        private final YerushaMetadataReplacementPlugin plugin;
+        private final Fileformat fileformat;
+        private boolean replaced;
+
+        ProcessJob(YerushaMetadataReplacementPlugin plugin, Fileformat fileformat) {
+            this.plugin = plugin;
+            this.fileformat = fileformat;
+        }
+    }
+
+    private enum ProcessStatus {
+        CHANGED,
+        UNCHANGED,
+        SKIPPED,
+        RESUMED,
+        FAILED
+    }
+
+    /**
+     * Settings of a batch
+     *
+     * @param stepTitle the title of the step, used to select the configuration block
+     * @param workers number of processes changed at the same time
+     * @param ioThreads number of threads reading and writing METS files
+     * @param checkpointFile file to record finished processes, null if the batch cannot be resumed
+     * @param progressInterval number of processes after which the progress is logged
+     */
+    public record BatchSettings(String stepTitle, int workers, int ioThreads, Path checkpointFile, int progressInterval) {
+
+        public BatchSettings {
+            workers = Math.max(1, workers);
+            ioThreads = Math.max(1, ioThreads);
+            progressInterval = Math.max(1, progressInterval);
+        }
+
+        /**
+         * Read the settings from the batch block of the plugin configuration
+         *
+         * @return the settings
+         */
+        public static BatchSettings read() {
+            XMLConfiguration config = ConfigPlugins.getPluginConfig(TITLE);
+            String checkpointFile = config.getString("batch/checkpointFile", "");
+            return new BatchSettings(config.getString("batch/stepTitle", "Metadata replacement"), config.getInt("batch/workers", 4),
+                    config.getInt("batch/ioThreads", 2), StringUtils.isBlank(checkpointFile) ? null : Paths.get(checkpointFile),
+                    config.getInt("batch/progressInterval", 100));
+        }
+    }
+
+    /**
+     * Result of a batch
+     *
+     * @param total number of matching processes
+     * @param changed processes with changed metadata
+     * @param unchanged processes without changes, the METS file was not written
+     * @param skipped processes skipped because neither metadata nor vocabularies changed since the last run
+     * @param resumed processes already finished by an earlier, interrupted run
+     * @param failed processes with errors
+     * @param duration duration in milliseconds
+     */
+    public record BatchResult(int total, int changed, int unchanged, int skipped, int resumed, int failed, long duration) {
+    }
+}
@@ -0,0 +1,106 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.goobi.goobiScript.AbstractIGoobiScript;
+import org.goobi.goobiScript.GoobiScriptResult;
+import org.goobi.goobiScript.IGoobiScript;
+import org.goobi.production.enums.GoobiScriptResultType;
+
+import de.intranda.goobi.plugins.MetadataReplacementBatch.BatchSettings;
+import lombok.extern.log4j.Log4j2;
+import net.xeoh.plugins.base.annotations.PluginImplementation;
+
+/**
+ * GoobiScript to run the metadata replacement for the selected processes:
+ *
+ * <pre>
+ * action: metadataReplacement
+ * stepTitle: Metadata replacement
+ * </pre>
+ *
+ * GoobiScript executes the processes one after another. The first executed process therefore starts a {@link MetadataReplacementBatch} for all
+ * selected processes, which processes them in parallel with shared caches. The following processes only take their status from the batch.
+ */
+@PluginImplementation
+@Log4j2
+public class MetadataReplacementGoobiScript extends AbstractIGoobiScript implements IGoobiScript {
+
+    private static final String ACTION = "metadataReplacement";
+
+    private List<Integer> processIds = new ArrayList<>();
+    private String stepTitle;
+    // batch of the prepared processes, started by the first executed process
+    private MetadataReplacementBatch batch;
+
+    @Override
+    public String getAction() {
+        return ACTION;
+    }
+
+    @Override
+    public String getSampleCall() {
+        addNewActionToSampleCall("Replace the metadata of the selected processes with the values of the configured vocabularies.");
+        addParameterToSampleCall("stepTitle", "Metadata replacement",
+                "Title of the step used to select the configuration block. If empty, batch/stepTitle of the plugin configuration is used.");
+        return "";
+    }
+
+    @Override
+    public List<GoobiScriptResult> prepare(List<Integer> processes, String command, Map<String, String> parameters) {
+        super.prepare(processes, command, parameters);
+        processIds = new ArrayList<>(processes);
+        stepTitle = parameters.get("stepTitle");
+        batch = null;
+
+        List<GoobiScriptResult> results = new ArrayList<>();
+        for (Integer processId : processes) {
+            GoobiScriptResult gsr = new GoobiScriptResult(processId, command, parameters, username, starttime);
+            gsr.setCustomGoobiScriptImpl(this);
+            results.add(gsr);
+        }
+        return results;
+    }
+
+    @Override
+    public void execute(GoobiScriptResult gsr) {
+        gsr.setResultType(GoobiScriptResultType.RUNNING);
+        gsr.updateTimestamp();
+        String status;
+        try {
+            status = runBatch().getProcessStatus(gsr.getProcessId());
+        } catch (RuntimeException e) {
+            log.error("Metadata replacement failed", e);
+            gsr.setResultMessage("Metadata replacement failed");
+            gsr.setErrorText(e.getMessage());
+            gsr.setResultType(GoobiScriptResultType.ERROR);
+            gsr.updateTimestamp();
+            return;
+        }
+        if (status == null || "FAILED".equals(status)) {
+            gsr.setResultMessage(status == null ? "Metadata replacement was cancelled" : "Metadata replacement failed, see the log for details");
+            gsr.setResultType(GoobiScriptResultType.ERROR);
+        } else {
+            gsr.setResultMessage("Metadata replacement finished: " + status.toLowerCase());
+            gsr.setResultType(GoobiScriptResultType.OK);
+        }
+        gsr.updateTimestamp();
+    }
+
+    private synchronized MetadataReplacementBatch runBatch() {
+        if (batch == null) {
+            BatchSettings settings = BatchSettings.read();
+            if (StringUtils.isNotBlank(stepTitle)) {
+                settings = new BatchSettings(stepTitle, settings.workers(), settings.ioThreads(), settings.checkpointFile(),
+                        settings.progressInterval());
+            }
+            MetadataReplacementBatch newBatch = new MetadataReplacementBatch(settings);
+            newBatch.run(processIds);
+            batch = newBatch;
+        }
+        return batch;
+    }
+}
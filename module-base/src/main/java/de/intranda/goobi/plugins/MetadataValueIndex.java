@@ -0,0 +1,77 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import ugh.dl.Metadata;
+
+/**
+ * Hash index of the metadata type names and values of a docstruct or metadata group. It allows to check in constant time whether a metadata
+ * with the same type and value exists already and to get all metadata of a type without running through the complete list. The index must be
+ * updated whenever metadata is added or removed.
+ */
+class MetadataValueIndex {
+
+    // number of metadata per type and value
+    private final Map<String, Integer> counts = new HashMap<>();
+
+    // metadata per type name, in the order of the docstruct or group
+    private final Map<String, List<Metadata>> metadataByType = new HashMap<>();
+
+    MetadataValueIndex(List<Metadata> metadataList) {
+        if (metadataList != null) {
+            for (Metadata md : metadataList) {
+                add(md);
+            }
+        }
+    }
+
+    /**
+     * Check if a metadata with the same type and value exists
+     *
+     * @param md the metadata to check
+     * @return true if the type and value are already known
+     */
+    boolean contains(Metadata md) {
+        return counts.containsKey(createKey(md));
+    }
+
+    /**
+     * Get all metadata of a type
+     *
+     * @param typeName the name of the metadata type
+     * @return a copy of the list of metadata, in the order of the docstruct or group
+     */
+    List<Metadata> getMetadataByType(String typeName) {
+        List<Metadata> metadataList = metadataByType.get(typeName);
+        return metadataList == null ? new ArrayList<>() : new ArrayList<>(metadataList);
+    }
+
+    void add(Metadata md) {
+        counts.merge(createKey(md), 1, Integer::sum);
+        metadataByType.computeIfAbsent(md.getType().getName(), t -> new ArrayList<>()).add(md);
+    }
+
+    void remove(Metadata md) {
+        counts.computeIfPresent(createKey(md), (k, count) -> count > 1 ? count - 1 : null);
+        List<Metadata> metadataList = metadataByType.get(md.getType().getName());
+        if (metadataList != null) {
+            // remove the instance itself, not an equal metadata
+            for (Iterator<Metadata> iterator = metadataList.iterator(); iterator.hasNext();) {
+                if (iterator.next() == md) {
+                    iterator.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    private static String createKey(Metadata md) {
+        String value = md.getValue();
+        // a separator that cannot be part of a type name, null values get their own marker
+        return value == null ? md.getType().getName() + "\u0001" : md.getType().getName() + "\u0000" + value;
+    }
+}
@@ -0,0 +1,37 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.util.List;
+
+import de.intranda.digiverso.normdataimporter.NormDataImporter;
+import de.intranda.digiverso.normdataimporter.model.MarcRecord;
+import de.intranda.digiverso.normdataimporter.model.MarcRecord.DatabaseUrl;
+
+/**
+ * Default {@link ViafResolver}, downloads the MARC21 record of the cluster from viaf.org and uses the record of the first preferred
+ * institution found
+ */
+public class NormDataViafResolver implements ViafResolver {
+
+    private static final List<String> PREFERRED_DATABASES = List.of("j9u", "lc");
+
+    @Override
+    public String resolvePreferredId(String viafId) throws IOException {
+        MarcRecord recordToImport = NormDataImporter.getSingleMarcRecord("https://viaf.org/viaf/" + viafId + "/marc21.xml");
+        // deleted or invalid clusters have no record, they are handled like clusters without a preferred record and keep the original ID
+        if (recordToImport == null) {
+            return null;
+        }
+        if (recordToImport.getAuthorityDatabaseUrls() != null) {
+            for (String database : PREFERRED_DATABASES) {
+                for (DatabaseUrl url : recordToImport.getAuthorityDatabaseUrls()) {
+                    if (url.getDatabaseCode().equalsIgnoreCase(database)) {
+                        String result = url.getMarcRecordUrl();
+                        return result.substring(result.indexOf("processed"));
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
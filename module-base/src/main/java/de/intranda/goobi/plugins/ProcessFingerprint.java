@@ -0,0 +1,133 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+import de.intranda.goobi.plugins.YerushaMetadataReplacementPlugin.ReplacementConfiguration;
+import de.intranda.goobi.plugins.YerushaMetadataReplacementPlugin.ReplacementEntry;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.DocStruct;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataGroup;
+
+/**
+ * Fingerprint of the input of a run: the configuration, the values of all configured source and target fields and the versions of the used
+ * vocabularies. It is stored next to the METS file after a run. If the next run finds the same fingerprint, the run can be skipped. The versions
+ * of the vocabularies are taken from their local copies, see {@link VocabularyDownload#getVersion()}. They are only determined again after the
+ * configured maximum age or a detected change, so a corrected record is not noticed before.
+ */
+@Log4j2
+class ProcessFingerprint {
+
+    static final String FILENAME = "metadata_replacement.fingerprint";
+
+    private ProcessFingerprint() {
+    }
+
+    /**
+     * Create the fingerprint
+     *
+     * @param configuration the replacement plan
+     * @param docstructs the docstructs to process
+     * @param vocabularyVersions the version of each vocabulary used by the configuration
+     * @return the fingerprint as hex string
+     */
+    static String create(ReplacementConfiguration configuration, List<DocStruct> docstructs, Map<String, String> vocabularyVersions) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Set<String> fields = new HashSet<>();
+        for (ReplacementEntry entry : configuration.getEntryList()) {
+            fields.add(entry.getFieldFrom());
+            fields.add(entry.getFieldTo());
+        }
+        update(digest, String.valueOf(configuration.getConfigurationModified()));
+        for (DocStruct docstruct : docstructs) {
+            update(digest, "docstruct");
+            update(digest, docstruct.getAllMetadata(), fields);
+            if (docstruct.getAllMetadataGroups() != null) {
+                for (MetadataGroup group : docstruct.getAllMetadataGroups()) {
+                    if (configuration.getGroupEntries().containsKey(group.getType().getName())) {
+                        update(digest, group.getType().getName());
+                        update(digest, group.getMetadataList(), fields);
+                    }
+                }
+            }
+        }
+        vocabularyVersions.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(e -> {
+            update(digest, e.getKey());
+            update(digest, e.getValue());
+        });
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Read the stored fingerprint of a process
+     *
+     * @param processDataDirectory the folder containing the METS file
+     * @param maxAge days after which a fingerprint is not used anymore
+     * @return the fingerprint or null, if no current fingerprint exists
+     */
+    static String read(Path processDataDirectory, long maxAge) {
+        Path file = processDataDirectory.resolve(FILENAME);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            String[] content = Files.readString(file, StandardCharsets.UTF_8).trim().split("\t");
+            if (content.length == 2 && System.currentTimeMillis() - Long.parseLong(content[0]) < maxAge * 24 * 60 * 60 * 1000) {
+                return content[1];
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Cannot read fingerprint {}", file, e);
+        }
+        return null;
+    }
+
+    /**
+     * Store the fingerprint of a process
+     *
+     * @param processDataDirectory the folder containing the METS file
+     * @param fingerprint the fingerprint
+     */
+    static void write(Path processDataDirectory, String fingerprint) {
+        Path file = processDataDirectory.resolve(FILENAME);
+        try {
+            Files.writeString(file, System.currentTimeMillis() + "\t" + fingerprint, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.warn("Cannot write fingerprint {}", file, e);
+        }
+    }
+
+    private static void update(MessageDigest digest, List<Metadata> metadataList, Set<String> fields) {
+        if (metadataList == null) {
+            return;
+        }
+        for (Metadata md : metadataList) {
+            if (fields.contains(md.getType().getName())) {
+                update(digest, md.getType().getName());
+                update(digest, StringUtils.defaultString(md.getValue()));
+                update(digest, StringUtils.defaultString(md.getAuthorityValue()));
+            }
+        }
+    }
+
+    private static void update(MessageDigest digest, String text) {
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+}
@@ -0,0 +1,76 @@
+package de.intranda.goobi.plugins;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers and counters of a single run. Values can be added by the concurrent lookups of a process. When the run is finished, the values are
+ * added to the {@link ReplacementMetrics}.
+ */
+class ProcessMetrics {
+
+    enum Phase {
+        READ,
+        LOOKUP,
+        VIAF,
+        UPDATE,
+        WRITE
+    }
+
+    enum Counter {
+        LOOKUPS,
+        CACHE_HITS,
+        FILTERED_LOOKUPS,
+        RECORDS_MATCHED,
+        RECORDS_MISSING,
+        VIAF_REQUESTS,
+        VOCABULARY_FALLBACKS,
+        VIAF_FALLBACKS
+    }
+
+    private final long start = System.nanoTime();
+
+    private final Map<Phase, LongAdder> durations = new EnumMap<>(Phase.class);
+    private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+
+    ProcessMetrics() {
+        for (Phase phase : Phase.values()) {
+            durations.put(phase, new LongAdder());
+        }
+        for (Counter counter : Counter.values()) {
+            counters.put(counter, new LongAdder());
+        }
+    }
+
+    /**
+     * Add the duration of a phase
+     *
+     * @param phase the phase
+     * @param startNanos the start of the phase, as returned by {@link System#nanoTime()}
+     */
+    void time(Phase phase, long startNanos) {
+        durations.get(phase).add(System.nanoTime() - startNanos);
+    }
+
+    void count(Counter counter) {
+        counters.get(counter).increment();
+    }
+
+    long getNanos(Phase phase) {
+        return durations.get(phase).sum();
+    }
+
+    long getMillis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(getNanos(phase));
+    }
+
+    long getCount(Counter counter) {
+        return counters.get(counter).sum();
+    }
+
+    long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,261 @@
+package de.intranda.goobi.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import de.intranda.goobi.plugins.ProcessMetrics.Counter;
+import de.intranda.goobi.plugins.ProcessMetrics.Phase;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Metrics of all runs within the JVM. The instance is registered at the platform MBean server, so the values can be read with any JMX client.
+ */
+@Log4j2
+class ReplacementMetrics implements ReplacementMetricsMXBean {
+
+    private static final String OBJECT_NAME = "de.intranda.goobi.plugins:type=MetadataReplacement";
+
+    // number of latest searches used to calculate the percentiles of a vocabulary
+    private static final int SAMPLE_SIZE = 1024;
+
+    private static final ReplacementMetrics INSTANCE = register(new ReplacementMetrics());
+
+    private final LongAdder processes = new LongAdder();
+    private final LongAdder processesWritten = new LongAdder();
+    private final LongAdder metadataAdded = new LongAdder();
+    private final LongAdder metadataRemoved = new LongAdder();
+    private final Map<Phase, LongAdder> durations = new ConcurrentHashMap<>();
+    private final Map<Counter, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LatencySamples> latencies = new ConcurrentHashMap<>();
+    private final Map<String, LatencySamples> remoteLatencies = new ConcurrentHashMap<>();
+
+    private ReplacementMetrics() {
+    }
+
+    static ReplacementMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Add the metrics of a finished run
+     *
+     * @param metrics the metrics of the run
+     * @param changes the metadata changes of the run
+     * @param written true if the METS file was written
+     */
+    void record(ProcessMetrics metrics, ChangeTracker changes, boolean written) {
+        processes.increment();
+        if (written) {
+            processesWritten.increment();
+        }
+        metadataAdded.add(changes.getAdded());
+        metadataRemoved.add(changes.getRemoved());
+        for (Phase phase : Phase.values()) {
+            durations.computeIfAbsent(phase, p -> new LongAdder()).add(metrics.getNanos(phase));
+        }
+        for (Counter counter : Counter.values()) {
+            counters.computeIfAbsent(counter, c -> new LongAdder()).add(metrics.getCount(counter));
+        }
+    }
+
+    /**
+     * Add the duration of a single search in a vocabulary, no matter if it was answered by a local copy or by the vocabulary server
+     *
+     * @param vocabulary the name of the vocabulary
+     * @param nanos the duration in nanoseconds
+     */
+    void recordLookup(String vocabulary, long nanos) {
+        latencies.computeIfAbsent(vocabulary, v -> new LatencySamples()).add(nanos);
+    }
+
+    /**
+     * Add the duration of a single search sent to the vocabulary server, including failed and timed out searches
+     *
+     * @param vocabulary the name of the vocabulary
+     * @param nanos the duration in nanoseconds
+     */
+    void recordRemoteLookup(String vocabulary, long nanos) {
+        remoteLatencies.computeIfAbsent(vocabulary, v -> new LatencySamples()).add(nanos);
+    }
+
+    @Override
+    public long getProcesses() {
+        return processes.sum();
+    }
+
+    @Override
+    public long getProcessesWritten() {
+        return processesWritten.sum();
+    }
+
+    @Override
+    public long getLookups() {
+        return getCount(Counter.LOOKUPS);
+    }
+
+    @Override
+    public long getCacheHits() {
+        return getCount(Counter.CACHE_HITS);
+    }
+
+    @Override
+    public long getFilteredLookups() {
+        return getCount(Counter.FILTERED_LOOKUPS);
+    }
+
+    @Override
+    public long getRecordsMatched() {
+        return getCount(Counter.RECORDS_MATCHED);
+    }
+
+    @Override
+    public long getRecordsMissing() {
+        return getCount(Counter.RECORDS_MISSING);
+    }
+
+    @Override
+    public long getViafRequests() {
+        return getCount(Counter.VIAF_REQUESTS);
+    }
+
+    @Override
+    public long getVocabularyFallbacks() {
+        return getCount(Counter.VOCABULARY_FALLBACKS);
+    }
+
+    @Override
+    public long getViafFallbacks() {
+        return getCount(Counter.VIAF_FALLBACKS);
+    }
+
+    @Override
+    public long getMetadataAdded() {
+        return metadataAdded.sum();
+    }
+
+    @Override
+    public long getMetadataRemoved() {
+        return metadataRemoved.sum();
+    }
+
+    @Override
+    public long getReadTimeMillis() {
+        return getMillis(Phase.READ);
+    }
+
+    @Override
+    public long getLookupTimeMillis() {
+        return getMillis(Phase.LOOKUP);
+    }
+
+    @Override
+    public long getViafTimeMillis() {
+        return getMillis(Phase.VIAF);
+    }
+
+    @Override
+    public long getUpdateTimeMillis() {
+        return getMillis(Phase.UPDATE);
+    }
+
+    @Override
+    public long getWriteTimeMillis() {
+        return getMillis(Phase.WRITE);
+    }
+
+    @Override
+    public Map<String, Double> getLookupLatencyP50Millis() {
+        return getPercentiles(latencies, 0.5);
+    }
+
+    @Override
+    public Map<String, Double> getLookupLatencyP99Millis() {
+        return getPercentiles(latencies, 0.99);
+    }
+
+    @Override
+    public Map<String, Double> getRemoteLookupLatencyP50Millis() {
+        return getPercentiles(remoteLatencies, 0.5);
+    }
+
+    @Override
+    public Map<String, Double> getRemoteLookupLatencyP99Millis() {
+        return getPercentiles(remoteLatencies, 0.99);
+    }
+
+    @Override
+    public void reset() {
+        processes.reset();
+        processesWritten.reset();
+        metadataAdded.reset();
+        metadataRemoved.reset();
+        durations.clear();
+        counters.clear();
+        latencies.clear();
+        remoteLatencies.clear();
+    }
+
+    private long getCount(Counter counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    private long getMillis(Phase phase) {
+        LongAdder adder = durations.get(phase);
+        return adder == null ? 0 : TimeUnit.NANOSECONDS.toMillis(adder.sum());
+    }
+
+    private static Map<String, Double> getPercentiles(Map<String, LatencySamples> latencies, double percentile) {
+        Map<String, Double> result = new TreeMap<>();
+        latencies.forEach((vocabulary, samples) -> result.put(vocabulary, samples.getPercentile(percentile) / 1_000_000d));
+        return result;
+    }
+
+    private static ReplacementMetrics register(ReplacementMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // a reloaded plugin replaces the instance of the previous class loader
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (JMException e) {
+            log.warn("Cannot register metrics of the metadata replacement: {}", e.getMessage());
+        }
+        return metrics;
+    }
+
+    /**
+     * Ring buffer holding the latest durations of a vocabulary
+     */
+    private static class LatencySamples {
+        private final long[] samples = new long[SAMPLE_SIZE];
+        private int next;
+        private int size;
+
+        synchronized void add(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % SAMPLE_SIZE;
+            size = Math.min(size + 1, SAMPLE_SIZE);
+        }
+
+        synchronized long getPercentile(double percentile) {
+            if (size == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            return sorted[Math.min(size - 1, (int) Math.ceil(percentile * size) - 1)];
+        }
+    }
+}
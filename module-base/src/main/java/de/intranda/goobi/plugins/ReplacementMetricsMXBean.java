@@ -0,0 +1,90 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Map;
+
+/**
+ * Metrics of the metadata replacement, published via JMX as <code>de.intranda.goobi.plugins:type=MetadataReplacement</code>. All values are
+ * summed up since the start of the application or the last reset.
+ */
+public interface ReplacementMetricsMXBean {
+
+    long getProcesses();
+
+    long getProcessesWritten();
+
+    long getLookups();
+
+    long getCacheHits();
+
+    /**
+     * Number of searches skipped, because the Bloom filter of the vocabulary rejected the value
+     *
+     * @return the number of searches
+     */
+    long getFilteredLookups();
+
+    long getRecordsMatched();
+
+    long getRecordsMissing();
+
+    long getViafRequests();
+
+    /**
+     * Number of values handled as missing, because the vocabulary server was not available in time
+     *
+     * @return the number of values
+     */
+    long getVocabularyFallbacks();
+
+    /**
+     * Number of VIAF IDs kept unchanged, because VIAF was not available in time
+     *
+     * @return the number of IDs
+     */
+    long getViafFallbacks();
+
+    long getMetadataAdded();
+
+    long getMetadataRemoved();
+
+    long getReadTimeMillis();
+
+    long getLookupTimeMillis();
+
+    long getViafTimeMillis();
+
+    long getUpdateTimeMillis();
+
+    long getWriteTimeMillis();
+
+    /**
+     * Median duration of all searches in each vocabulary, calculated from the latest searches. Searches in local copies are included.
+     *
+     * @return the duration in milliseconds by vocabulary name
+     */
+    Map<String, Double> getLookupLatencyP50Millis();
+
+    /**
+     * 99th percentile of the duration of all searches in each vocabulary, calculated from the latest searches. Searches in local copies are
+     * included.
+     *
+     * @return the duration in milliseconds by vocabulary name
+     */
+    Map<String, Double> getLookupLatencyP99Millis();
+
+    /**
+     * Median duration of the searches sent to the vocabulary server, calculated from the latest searches
+     *
+     * @return the duration in milliseconds by vocabulary name
+     */
+    Map<String, Double> getRemoteLookupLatencyP50Millis();
+
+    /**
+     * 99th percentile of the duration of the searches sent to the vocabulary server, calculated from the latest searches
+     *
+     * @return the duration in milliseconds by vocabulary name
+     */
+    Map<String, Double> getRemoteLookupLatencyP99Millis();
+
+    void reset();
+}
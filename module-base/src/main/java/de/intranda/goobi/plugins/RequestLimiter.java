@@ -0,0 +1,78 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of concurrent requests to a remote service. Limiters are shared within the JVM, so the limit applies to all processes that
+ * are executed at the same time.
+ */
+class RequestLimiter {
+
+    static final String VOCABULARY = "vocabulary";
+    static final String VIAF = "viaf";
+
+    private static final Map<String, RequestLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    private final int maxRequests;
+    private final Semaphore semaphore;
+
+    private RequestLimiter(int maxRequests) {
+        this.maxRequests = maxRequests;
+        this.semaphore = new Semaphore(maxRequests, true);
+    }
+
+    /**
+     * Get the limiter of a remote service. If the configured limit has changed, a new limiter replaces the old one, requests running with the old
+     * limiter are finished normally.
+     *
+     * @param remote name of the remote service
+     * @param maxRequests maximum number of concurrent requests
+     * @return the limiter
+     */
+    static RequestLimiter forRemote(String remote, int maxRequests) {
+        int limit = Math.max(1, maxRequests);
+        return LIMITERS.compute(remote, (k, existing) -> existing != null && existing.maxRequests == limit ? existing : new RequestLimiter(limit));
+    }
+
+    /**
+     * Run a request, as soon as the number of running requests allows it
+     *
+     * @param request the request to run
+     * @return the result of the request
+     * @throws E the exception thrown by the request
+     */
+    <T, E extends Exception> T call(RemoteCall<T, E> request) throws E {
+        semaphore.acquireUninterruptibly();
+        try {
+            return request.call();
+        } finally {
+            semaphore.release();
+        }
+    }
+
+    /**
+     * Wait for a free slot, e.g. before a request is started on another thread. The slot must be given back with {@link #release()}.
+     *
+     * @param timeoutMillis maximum time to wait in milliseconds
+     * @return false if no slot was free in time
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    boolean tryAcquire(long timeoutMillis) throws InterruptedException {
+        return semaphore.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Give back a slot taken with {@link #tryAcquire(long)}
+     */
+    void release() {
+        semaphore.release();
+    }
+
+    @FunctionalInterface
+    interface RemoteCall<T, E extends Exception> {
+        T call() throws E;
+    }
+}
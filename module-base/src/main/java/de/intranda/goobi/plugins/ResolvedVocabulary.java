@@ -0,0 +1,133 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.apache.commons.lang3.StringUtils;
+
+import de.intranda.goobi.plugins.YerushaMetadataReplacementPlugin.ReplacementEntry;
+import io.goobi.vocabulary.exchange.FieldDefinition;
+import io.goobi.vocabulary.exchange.TranslationInstance;
+import io.goobi.vocabulary.exchange.VocabularySchema;
+import io.goobi.workflow.api.vocabulary.VocabularyAPIManager;
+import io.goobi.workflow.api.vocabulary.helper.ExtendedFieldInstance;
+import io.goobi.workflow.api.vocabulary.helper.ExtendedVocabulary;
+import io.goobi.workflow.api.vocabulary.helper.ExtendedVocabularyRecord;
+import lombok.Getter;
+
+/**
+ * Vocabulary, schema and field definitions used by a single replacement entry. The instance is resolved once per run and reused for every value
+ * of the entry, so the vocabulary API is only asked once for the vocabulary and its schema.
+ */
+@Getter
+class ResolvedVocabulary {
+
+    private final ExtendedVocabulary vocabulary;
+    private final VocabularySchema schema;
+
+    private final FieldDefinition searchField;
+    private final FieldDefinition replaceField;
+    private final FieldDefinition authorityField;
+    private final FieldDefinition authorityUriField;
+    private final FieldDefinition authorityValueUriField;
+    private final FieldDefinition fieldToDynamicField;
+
+    ResolvedVocabulary(ReplacementEntry entry) {
+        vocabulary = VocabularyAPIManager.getInstance().vocabularies().findByName(entry.getVocabulary());
+        schema = VocabularyAPIManager.getInstance().vocabularySchemas().get(vocabulary.getSchemaId());
+        searchField = findDefinition(entry.getContentSearch());
+        replaceField = findDefinition(entry.getContentReplace());
+        authorityField = findDefinition(entry.getContentAuthority());
+        authorityUriField = findDefinition(entry.getContentAuthorityUri());
+        authorityValueUriField = findDefinition(entry.getContentAuthorityValueUri());
+        fieldToDynamicField = findDefinition(entry.getFieldToDynamic());
+    }
+
+    /**
+     * A vocabulary can only be used for replacements, if the configured search field exists in its schema
+     *
+     * @return true if the search field was found
+     */
+    boolean isSearchable() {
+        return searchField != null;
+    }
+
+    /**
+     * Get the value of a record field
+     *
+     * @param vocabularyRecord the record to read
+     * @param definition the resolved field definition, can be null if the field is not configured or not part of the schema
+     * @return the value of the field, if present
+     */
+    Optional<String> getFieldValue(ExtendedVocabularyRecord vocabularyRecord, FieldDefinition definition) {
+        if (definition == null) {
+            return Optional.empty();
+        }
+        return vocabularyRecord.getFieldValueForDefinitionName(definition.getName());
+    }
+
+    /**
+     * Get a field instance of a record
+     *
+     * @param vocabularyRecord the record to read
+     * @param definition the resolved field definition, can be null if the field is not configured or not part of the schema
+     * @return the field instance, if present
+     */
+    Optional<ExtendedFieldInstance> getField(ExtendedVocabularyRecord vocabularyRecord, FieldDefinition definition) {
+        if (definition == null) {
+            return Optional.empty();
+        }
+        return vocabularyRecord.getFieldForDefinition(definition);
+    }
+
+    /**
+     * Get the distinct values of the search field of a record
+     *
+     * @param vocabularyRecord the record to read
+     * @return the values of all translations
+     */
+    List<String> getSearchValues(ExtendedVocabularyRecord vocabularyRecord) {
+        return vocabularyRecord.getFieldForDefinition(searchField)
+                .map(field -> field.getValues()
+                        .stream()
+                        .flatMap(v -> v.getTranslations().stream())
+                        .map(TranslationInstance::getValue)
+                        .distinct()
+                        .toList())
+                .orElse(Collections.emptyList());
+    }
+
+    /**
+     * Read the replacement values and authority data from a record
+     *
+     * @param vocabularyRecord the record matching the search value
+     * @return the lookup result
+     */
+    VocabularyLookupResult createLookupResult(ExtendedVocabularyRecord vocabularyRecord) {
+        // if a fieldToDynamic is defined, get it from the vocabulary record
+        String fieldTo = getFieldValue(vocabularyRecord, fieldToDynamicField).orElse(null);
+
+        String contentAuthority = getFieldValue(vocabularyRecord, authorityField).orElse(null);
+        String contentAuthorityUri = getFieldValue(vocabularyRecord, authorityUriField).orElse(null);
+        String contentAuthorityValueUri = getFieldValue(vocabularyRecord, authorityValueUriField).orElse(null);
+
+        // now run through all fields to find the right one where to put the replaced value to
+        List<String> replacementValues = getField(vocabularyRecord, replaceField)
+                .map(field -> field.getExtendedValues()
+                        .stream()
+                        .flatMap(v -> v.getTranslations().stream())
+                        .map(TranslationInstance::getValue)
+                        .toList())
+                .orElse(Collections.emptyList());
+
+        return new VocabularyLookupResult(true, replacementValues, fieldTo, contentAuthority, contentAuthorityUri, contentAuthorityValueUri);
+    }
+
+    private FieldDefinition findDefinition(String name) {
+        if (StringUtils.isBlank(name)) {
+            return null;
+        }
+        return schema.getDefinitions().stream().filter(d -> d.getName().equals(name)).findFirst().orElse(null);
+    }
+}
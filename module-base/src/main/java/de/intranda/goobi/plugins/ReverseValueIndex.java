@@ -0,0 +1,124 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.intranda.goobi.plugins.KeyValueFileStore.StoredValue;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Index from vocabulary, search field and value to the processes containing the value in a source field. The values of each process are stored
+ * persistently whenever the process is changed, the reverse index is built in memory when the file is loaded. It allows to change only the
+ * processes affected by a corrected vocabulary record.
+ */
+@Log4j2
+class ReverseValueIndex {
+
+    static final String FILENAME = "processes.txt";
+
+    private static final String KEY_SEPARATOR = "\u001f";
+    private static final String VALUE_SEPARATOR = "\u001e";
+
+    // one index per directory, shared by all plugin instances
+    private static final Map<Path, ReverseValueIndex> INDEXES = new ConcurrentHashMap<>();
+
+    private final KeyValueFileStore store;
+    private final Map<String, Set<Integer>> processesByValue = new ConcurrentHashMap<>();
+
+    private ReverseValueIndex(Path file) {
+        store = new KeyValueFileStore(file);
+        store.forEach((processId, storedValue) -> addProcess(Integer.parseInt(processId), split(storedValue)));
+        log.debug("Loaded {} values of {} processes from {}", processesByValue.size(), store.size(), file);
+    }
+
+    /**
+     * Get the index stored in a directory
+     *
+     * @param directory the directory of the index
+     * @return the index
+     */
+    static ReverseValueIndex forDirectory(Path directory) {
+        return INDEXES.computeIfAbsent(directory.resolve(FILENAME), ReverseValueIndex::new);
+    }
+
+    /**
+     * Create the key of a value
+     *
+     * @param vocabulary the name of the vocabulary
+     * @param contentSearch the search field of the vocabulary
+     * @param value the value of the source field
+     * @return the key
+     */
+    static String createKey(String vocabulary, String contentSearch, String value) {
+        return String.join(KEY_SEPARATOR, vocabulary, contentSearch, value);
+    }
+
+    /**
+     * Replace the values of a process
+     *
+     * @param processId the id of the process
+     * @param keys the keys of all values found in the source fields of the process
+     */
+    synchronized void update(int processId, Set<String> keys) {
+        Set<String> previous = split(store.get(String.valueOf(processId)));
+        if (previous.equals(keys)) {
+            return;
+        }
+        for (String key : previous) {
+            if (!keys.contains(key)) {
+                Set<Integer> processes = processesByValue.get(key);
+                if (processes != null) {
+                    processes.remove(processId);
+                    if (processes.isEmpty()) {
+                        processesByValue.remove(key);
+                    }
+                }
+            }
+        }
+        addProcess(processId, keys);
+        if (keys.isEmpty()) {
+            store.remove(String.valueOf(processId));
+        } else {
+            store.put(String.valueOf(processId), String.join(VALUE_SEPARATOR, new TreeSet<>(keys)));
+        }
+    }
+
+    /**
+     * Find the processes containing any of the values
+     *
+     * @param vocabulary the name of the vocabulary
+     * @param contentSearch the search field of the vocabulary
+     * @param values the values of the source fields
+     * @return the ids of the processes
+     */
+    Set<Integer> getProcesses(String vocabulary, String contentSearch, Collection<String> values) {
+        Set<Integer> processIds = new TreeSet<>();
+        for (String value : values) {
+            Set<Integer> processes = processesByValue.get(createKey(vocabulary, contentSearch, value));
+            if (processes != null) {
+                processIds.addAll(processes);
+            }
+        }
+        return processIds;
+    }
+
+    private void addProcess(int processId, Set<String> keys) {
+        for (String key : keys) {
+            processesByValue.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(processId);
+        }
+    }
+
+    private static Set<String> split(StoredValue storedValue) {
+        if (storedValue == null || storedValue.value() == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<>(Arrays.asList(storedValue.value().split(VALUE_SEPARATOR)));
+    }
+}
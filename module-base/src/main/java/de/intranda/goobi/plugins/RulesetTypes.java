@@ -0,0 +1,61 @@
+package de.intranda.goobi.plugins;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+
+import de.intranda.goobi.plugins.YerushaMetadataReplacementPlugin.ReplacementEntry;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.MetadataType;
+import ugh.dl.Prefs;
+
+/**
+ * Metadata types of a ruleset, resolved once by name during a run. Instances are not kept after the run, as the ruleset is loaded again for
+ * each process.
+ */
+@Log4j2
+class RulesetTypes {
+
+    private final Prefs prefs;
+
+    private final Map<String, Optional<MetadataType>> metadataTypes = new ConcurrentHashMap<>();
+
+    RulesetTypes(Prefs prefs) {
+        this.prefs = prefs;
+    }
+
+    /**
+     * Check that the configured fields are defined in the ruleset
+     *
+     * @param entries the replacement entries
+     */
+    void validate(List<ReplacementEntry> entries) {
+        for (ReplacementEntry entry : entries) {
+            if (StringUtils.isNotBlank(entry.getFieldFrom()) && getMetadataType(entry.getFieldFrom()) == null) {
+                log.warn("Metadata type {} used as fieldFrom is not defined in the ruleset", entry.getFieldFrom());
+            }
+            if (StringUtils.isNotBlank(entry.getFieldTo()) && getMetadataType(entry.getFieldTo()) == null) {
+                log.warn("Metadata type {} used as fieldTo is not defined in the ruleset", entry.getFieldTo());
+            }
+            if (StringUtils.isNotBlank(entry.getMetadataGroup()) && prefs.getMetadataGroupTypeByName(entry.getMetadataGroup()) == null) {
+                log.warn("Metadata group {} is not defined in the ruleset", entry.getMetadataGroup());
+            }
+        }
+    }
+
+    /**
+     * Get a metadata type
+     *
+     * @param name the name of the type
+     * @return the type or null, if the ruleset does not contain the type
+     */
+    MetadataType getMetadataType(String name) {
+        if (name == null) {
+            return null;
+        }
+        return metadataTypes.computeIfAbsent(name, n -> Optional.ofNullable(prefs.getMetadataTypeByName(n))).orElse(null);
+    }
+}
@@ -0,0 +1,95 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.intranda.goobi.plugins.CircuitBreaker.RemoteUnavailableException;
+import de.intranda.goobi.plugins.KeyValueFileStore.StoredValue;
+import de.intranda.goobi.plugins.ProcessMetrics.Counter;
+import de.intranda.goobi.plugins.ProcessMetrics.Phase;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Resolves VIAF IDs to the record of a preferred institution. Results are kept in a persistent file, so each VIAF cluster is only downloaded
+ * again after the configured time to live. Clusters without a record of a preferred institution are cached as well, but with their own time to
+ * live. Failed downloads are not cached, the requests are protected by a {@link CircuitBreaker}.
+ */
+@Log4j2
+class ViafIdCache {
+
+    private static final long DAY = 24l * 60 * 60 * 1000;
+
+    // one store per file, shared by all plugin instances
+    private static final Map<Path, KeyValueFileStore> STORES = new ConcurrentHashMap<>();
+
+    private final ViafSettings settings;
+    private final ViafResolver resolver;
+    private final KeyValueFileStore store;
+    private final RequestLimiter limiter;
+    private final CircuitBreaker breaker;
+
+    ViafIdCache(ViafSettings settings, RequestLimiter limiter, CircuitBreaker breaker) {
+        this.settings = settings;
+        this.limiter = limiter;
+        this.breaker = breaker;
+        this.resolver = createResolver(settings.resolver());
+        this.store = settings.cacheEnabled() ? STORES.computeIfAbsent(settings.cacheFile(), KeyValueFileStore::new) : null;
+    }
+
+    /**
+     * Get the path of the record of the preferred institution
+     *
+     * @param viafId the ID of the VIAF cluster
+     * @param deadline deadline of the current process, as returned by {@link CircuitBreaker#getDeadline(long)}
+     * @param metrics the metrics of the current process, only requests to VIAF are counted and timed
+     * @return the path of the preferred record or the original ID, if no preferred record exists
+     * @throws RemoteUnavailableException if VIAF could not be reached in time
+     */
+    String getPreferredId(String viafId, long deadline, ProcessMetrics metrics) throws RemoteUnavailableException {
+        if (store != null) {
+            StoredValue storedValue = store.get(viafId);
+            if (storedValue != null) {
+                long timeToLive = (storedValue.value() == null ? settings.negativeTimeToLive() : settings.timeToLive()) * DAY;
+                if (System.currentTimeMillis() - storedValue.timestamp() < timeToLive) {
+                    return storedValue.value() == null ? viafId : storedValue.value();
+                }
+            }
+        }
+        String preferredId;
+        long start = System.nanoTime();
+        try {
+            preferredId = breaker.call(limiter, () -> resolver.resolvePreferredId(viafId), settings.timeout(), deadline);
+        } finally {
+            metrics.time(Phase.VIAF, start);
+            metrics.count(Counter.VIAF_REQUESTS);
+        }
+        if (store != null) {
+            store.put(viafId, preferredId);
+        }
+        // if no better URL could be found give back the original again
+        return preferredId == null ? viafId : preferredId;
+    }
+
+    private static ViafResolver createResolver(String className) {
+        try {
+            return (ViafResolver) Class.forName(className, true, ViafIdCache.class.getClassLoader()).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            log.error("Cannot create VIAF resolver {}, use default resolver", className, e);
+            return new NormDataViafResolver();
+        }
+    }
+
+    /**
+     * Settings for the resolution of VIAF IDs
+     *
+     * @param cacheEnabled true if resolved IDs are stored persistently
+     * @param cacheFile the file to store the resolved IDs
+     * @param timeToLive days until a resolved ID is checked again
+     * @param negativeTimeToLive days until an ID without preferred record is checked again
+     * @param resolver class name of the {@link ViafResolver} to use
+     * @param timeout seconds until a request is cancelled, 0 for no limit
+     */
+    record ViafSettings(boolean cacheEnabled, Path cacheFile, long timeToLive, long negativeTimeToLive, String resolver, long timeout) {
+    }
+}
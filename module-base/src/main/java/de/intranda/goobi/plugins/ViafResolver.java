@@ -0,0 +1,20 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+
+/**
+ * Finds the record of the preferred institution for a VIAF cluster. Implementations can be configured in the plugin configuration, e.g. to use
+ * a local service instead of viaf.org.
+ */
+public interface ViafResolver {
+
+    /**
+     * Resolve a VIAF ID
+     *
+     * @param viafId the ID of the VIAF cluster
+     * @return the path of the record of the preferred institution or null, if the cluster does not exist or does not contain a record of a
+     *         preferred institution
+     * @throws IOException if the service could not be reached, only for errors that may disappear when the ID is resolved again
+     */
+    String resolvePreferredId(String viafId) throws IOException;
+}
@@ -0,0 +1,167 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.intranda.goobi.plugins.VocabularyDownload.DownloadSettings;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Bloom filter over the values of the search field of a vocabulary. A value rejected by the filter is definitely not contained in the
+ * vocabulary, so the search in the vocabulary server can be skipped. A value accepted by the filter is contained in the vocabulary or, with the
+ * configured false positive rate, not.
+ *
+ * The filters are shared within the JVM like the {@link VocabularyIndex} and rebuilt when the number of records in the vocabulary changes, when
+ * a change was detected by the {@link VocabularyChangeDetector} or when the filter gets older than the configured maximum age. Changed values
+ * of records are only noticed by the last two, so the maximum age should be short for vocabularies that are edited frequently.
+ */
+@Log4j2
+class VocabularyBloomFilter {
+
+    private static final Map<String, VocabularyBloomFilter> FILTERS = new ConcurrentHashMap<>();
+
+    private final long[] bits;
+    private final long bitCount;
+    private final int hashCount;
+    @Getter
+    private final int valueCount;
+    // state of the vocabulary download the filter was created from, null for filters created from a list of values
+    private final VocabularyDownload download;
+
+    private VocabularyBloomFilter(long[] hashes, int valueCount, double falsePositiveRate, VocabularyDownload download) {
+        this.valueCount = valueCount;
+        this.download = download;
+        // optimal number of bits and hash functions for the number of values and the false positive rate
+        long optimalBits = (long) Math.ceil(-Math.max(valueCount, 1) * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (optimalBits + 63) / 64));
+        bits = new long[words];
+        bitCount = words * 64L;
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / Math.max(valueCount, 1) * Math.log(2)));
+        for (int i = 0; i < valueCount; i++) {
+            add(hashes[i]);
+        }
+    }
+
+    /**
+     * Get the filter for the search field of a vocabulary. The filter is created, if it does not exist yet, or rebuilt, if the vocabulary was
+     * changed since the filter was created.
+     *
+     * @param resolved the resolved vocabulary containing the search field
+     * @param falsePositiveRate probability that a value is accepted, although it is not contained in the vocabulary
+     * @param settings the filter settings from the plugin configuration
+     * @return the filter
+     */
+    static VocabularyBloomFilter getFilter(ResolvedVocabulary resolved, double falsePositiveRate, DownloadSettings settings) {
+        String key = resolved.getVocabulary().getId() + ":" + resolved.getSearchField().getId() + ":" + falsePositiveRate;
+        return FILTERS.compute(key, (k, existing) -> {
+            if (existing != null && existing.download.isCurrent(resolved, settings)) {
+                return existing;
+            }
+            return build(resolved, falsePositiveRate, settings.pageSize());
+        });
+    }
+
+    /**
+     * Create a filter for a list of values, that is not shared and never rebuilt
+     *
+     * @param values the values contained in the filter
+     * @param falsePositiveRate probability that a value is accepted, although it is not contained in the filter
+     * @return the filter
+     */
+    static VocabularyBloomFilter create(Collection<String> values, double falsePositiveRate) {
+        HashList hashes = new HashList();
+        values.forEach(value -> hashes.add(hash(value)));
+        return new VocabularyBloomFilter(hashes.values, hashes.size, falsePositiveRate, null);
+    }
+
+    /**
+     * Remove all filters of a vocabulary, so they are rebuilt on the next use
+     *
+     * @param vocabularyId the ID of the vocabulary
+     */
+    static void invalidate(long vocabularyId) {
+        FILTERS.keySet().removeIf(key -> key.startsWith(vocabularyId + ":"));
+    }
+
+    /**
+     * Check if a value may be contained in the vocabulary
+     *
+     * @param value the value to check
+     * @return false if the value is definitely not contained in the vocabulary
+     */
+    boolean mightContain(String value) {
+        long hash = hash(value);
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = Math.floorMod(first + (long) i * second, bitCount);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(long hash) {
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = Math.floorMod(first + (long) i * second, bitCount);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Download all records page by page. Only a hash of each value is kept, so the values of the complete vocabulary are never held in memory.
+     */
+    private static VocabularyBloomFilter build(ResolvedVocabulary resolved, double falsePositiveRate, int pageSize) {
+        long start = System.currentTimeMillis();
+        HashList hashes = new HashList();
+        VocabularyDownload download = VocabularyDownload.run(resolved, pageSize, vocabularyRecord -> {
+            for (String value : resolved.getSearchValues(vocabularyRecord)) {
+                hashes.add(hash(value));
+            }
+        });
+        VocabularyBloomFilter filter = new VocabularyBloomFilter(hashes.values, hashes.size, falsePositiveRate, download);
+        log.info("Created filter with {} values of vocabulary {} in {} ms, {} KB", hashes.size, resolved.getVocabulary().getName(),
+                System.currentTimeMillis() - start, filter.bits.length / 128);
+        return filter;
+    }
+
+    /**
+     * 64 bit hash of the UTF-8 bytes of a value, the two halves are used as independent hashes
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        // mix the bits, so both halves depend on all bytes
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Growing list of the hashes of the values
+     */
+    private static class HashList {
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(long hash) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = hash;
+        }
+    }
+}
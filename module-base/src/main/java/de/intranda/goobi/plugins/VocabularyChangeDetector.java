@@ -0,0 +1,114 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import de.intranda.goobi.plugins.KeyValueFileStore.StoredValue;
+import de.intranda.goobi.plugins.VocabularyDownload.DownloadSettings;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Detects the values of a vocabulary search field, whose records were changed since the last check. A hash of the records of each value is
+ * stored in the directory of the reverse index and compared with the current records of the vocabulary.
+ */
+@Log4j2
+class VocabularyChangeDetector {
+
+    private VocabularyChangeDetector() {
+    }
+
+    /**
+     * Find the changed values. Values of added and removed records are reported as well. The first check only stores the current state, as
+     * there is nothing to compare with. Otherwise the new state is stored by {@link Changes#apply()}, after the affected processes were changed.
+     *
+     * @param resolved the resolved vocabulary containing the search field
+     * @param settings the settings used to download the vocabulary
+     * @param directory the directory of the reverse index
+     * @return the changed values
+     */
+    static Changes findChangedValues(ResolvedVocabulary resolved, DownloadSettings settings, Path directory) {
+        // only a hash over the records of each value is kept while the vocabulary is downloaded
+        Map<String, Long> current = new HashMap<>();
+        VocabularyDownload.run(resolved, settings.pageSize(), vocabularyRecord -> {
+            long recordHash = VocabularyDownload.hashRecord(resolved, vocabularyRecord);
+            for (String value : resolved.getSearchValues(vocabularyRecord)) {
+                current.merge(value, recordHash, (hash, next) -> 31 * hash + next);
+            }
+        });
+        KeyValueFileStore state = new KeyValueFileStore(
+                directory.resolve("values_" + resolved.getVocabulary().getId() + "_" + resolved.getSearchField().getId() + ".txt"));
+        boolean initial = state.size() == 0;
+
+        Set<String> changedValues = new HashSet<>();
+        Map<String, String> changedHashes = new HashMap<>();
+        current.forEach((value, hash) -> {
+            StoredValue stored = state.get(value);
+            if (stored == null || !String.valueOf(hash).equals(stored.value())) {
+                changedValues.add(value);
+                changedHashes.put(value, String.valueOf(hash));
+            }
+        });
+        Set<String> removedValues = new HashSet<>();
+        state.forEach((value, stored) -> {
+            if (!current.containsKey(value)) {
+                removedValues.add(value);
+            }
+        });
+        changedValues.addAll(removedValues);
+        if (!changedValues.isEmpty()) {
+            invalidate(resolved);
+        }
+        Changes changes = new Changes(changedValues, state, changedHashes, removedValues);
+
+        if (initial) {
+            changes.apply();
+            log.info("Stored the state of {} values of vocabulary {} for the detection of changes", current.size(),
+                    resolved.getVocabulary().getName());
+            return new Changes(new HashSet<>(), state, new HashMap<>(), new HashSet<>());
+        }
+        log.info("Found {} changed values in vocabulary {}", changedValues.size(), resolved.getVocabulary().getName());
+        return changes;
+    }
+
+    /**
+     * Changed values are not noticed by the local copies and the cached results, if the number of records is unchanged. They are discarded, so
+     * the processes changed afterwards get the current values.
+     */
+    private static void invalidate(ResolvedVocabulary resolved) {
+        VocabularyIndex.invalidate(resolved.getVocabulary().getId());
+        VocabularyBloomFilter.invalidate(resolved.getVocabulary().getId());
+        VocabularySnapshot.invalidate(resolved.getVocabulary().getId());
+        VocabularyLookupCache.getInstance().invalidate(resolved.getVocabulary().getName());
+    }
+
+    /**
+     * Values changed since the last check. As long as the new state is not applied, the next check reports the same values again, e.g. when
+     * the affected processes could not be changed.
+     */
+    static class Changes {
+        @Getter
+        private final Set<String> values;
+        private final KeyValueFileStore state;
+        private final Map<String, String> changedHashes;
+        private final Set<String> removedValues;
+
+        private Changes(Set<String> values, KeyValueFileStore state, Map<String, String> changedHashes, Set<String> removedValues) {
+            this.values = values;
+            this.state = state;
+            this.changedHashes = changedHashes;
+            this.removedValues = removedValues;
+        }
+
+        /**
+         * Store the new state, so the values are no longer reported as changed
+         */
+        void apply() {
+            state.putAll(changedHashes);
+            removedValues.forEach(state::remove);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import io.goobi.vocabulary.exchange.FieldDefinition;
+import io.goobi.vocabulary.exchange.TranslationInstance;
+import io.goobi.workflow.api.vocabulary.VocabularyAPIManager;
+import io.goobi.workflow.api.vocabulary.helper.ExtendedVocabularyRecord;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Download of all records of a vocabulary, used to create local copies like the {@link VocabularyIndex}, the {@link VocabularySnapshot} and the
+ * {@link VocabularyBloomFilter}. The records are requested page by page and passed to a consumer, only the number of records, a hash over their
+ * content and the time of the download are kept. These are used to decide when the copy has to be created again.
+ */
+@Log4j2
+class VocabularyDownload {
+
+    @Getter
+    private final long recordCount;
+    // hash over the content of all records, changes whenever a record is changed
+    @Getter
+    private final long contentHash;
+    @Getter
+    private final long created;
+
+    // time of the last check for changes in the vocabulary
+    private volatile long lastChecked;
+
+    VocabularyDownload(long recordCount, long contentHash, long created) {
+        this.recordCount = recordCount;
+        this.contentHash = contentHash;
+        this.created = created;
+        this.lastChecked = System.currentTimeMillis();
+    }
+
+    /**
+     * Download all records of a vocabulary
+     *
+     * @param resolved the resolved vocabulary
+     * @param pageSize number of records requested at once
+     * @param consumer receives the records in the order of the vocabulary
+     * @return the state of the download
+     */
+    static VocabularyDownload run(ResolvedVocabulary resolved, int pageSize, Consumer<ExtendedVocabularyRecord> consumer) {
+        long recordCount = 0;
+        long contentHash = 0;
+        long totalPages = 1;
+        for (int page = 0; page < totalPages; page++) {
+            var result = VocabularyAPIManager.getInstance()
+                    .vocabularyRecords()
+                    .list(resolved.getVocabulary().getId())
+                    .pageSize(pageSize)
+                    .page(page)
+                    .request();
+            totalPages = result.getPage().getTotalPages();
+            recordCount = result.getPage().getTotalElements();
+            for (ExtendedVocabularyRecord vocabularyRecord : result.getContent()) {
+                consumer.accept(vocabularyRecord);
+                contentHash = 31 * contentHash + hashRecord(resolved, vocabularyRecord);
+            }
+        }
+        return new VocabularyDownload(recordCount, contentHash, System.currentTimeMillis());
+    }
+
+    /**
+     * Get a version of the downloaded vocabulary, that changes whenever a record is changed, added or removed. The vocabulary API provides no
+     * version or modification date, so only local copies have a version.
+     *
+     * @return record count and content hash
+     */
+    String getVersion() {
+        return recordCount + ":" + contentHash;
+    }
+
+    /**
+     * Check if a copy created by this download is still current. The copy is outdated, when it gets older than the maximum age or when the
+     * number of records has changed. The number of records is requested at most once per check interval. Changed values of existing records
+     * are only noticed by the maximum age.
+     *
+     * @param resolved the resolved vocabulary
+     * @param settings the download settings from the plugin configuration
+     * @return false if the copy has to be created again
+     */
+    boolean isCurrent(ResolvedVocabulary resolved, DownloadSettings settings) {
+        long now = System.currentTimeMillis();
+        if (now - created > settings.maxAge() * 1000) {
+            log.debug("Copy of vocabulary {} expired", resolved.getVocabulary().getName());
+            return false;
+        }
+        if (now - lastChecked < settings.checkInterval() * 1000) {
+            return true;
+        }
+        lastChecked = now;
+        long currentCount = countRecords(resolved);
+        if (currentCount != recordCount) {
+            log.debug("Number of records in vocabulary {} changed from {} to {}", resolved.getVocabulary().getName(), recordCount, currentCount);
+            return false;
+        }
+        return true;
+    }
+
+    static long countRecords(ResolvedVocabulary resolved) {
+        return VocabularyAPIManager.getInstance()
+                .vocabularyRecords()
+                .list(resolved.getVocabulary().getId())
+                .pageSize(1)
+                .request()
+                .getPage()
+                .getTotalElements();
+    }
+
+    static long hashRecord(ResolvedVocabulary resolved, ExtendedVocabularyRecord vocabularyRecord) {
+        long hash = vocabularyRecord.getId();
+        for (FieldDefinition definition : resolved.getSchema().getDefinitions()) {
+            List<String> values = vocabularyRecord.getFieldForDefinition(definition)
+                    .map(field -> field.getValues().stream().flatMap(v -> v.getTranslations().stream()).map(TranslationInstance::getValue).toList())
+                    .orElse(Collections.emptyList());
+            hash = 31 * hash + values.hashCode();
+        }
+        return hash;
+    }
+
+    /**
+     * Settings for the download of complete vocabularies
+     *
+     * @param pageSize number of records requested at once
+     * @param checkInterval seconds between two checks for changes in the vocabulary
+     * @param maxAge seconds after which a copy is created again in any case
+     * @param timeout seconds a process waits for the copy to be created or checked, 0 for no limit
+     */
+    record DownloadSettings(int pageSize, long checkInterval, long maxAge, long timeout) {
+    }
+}
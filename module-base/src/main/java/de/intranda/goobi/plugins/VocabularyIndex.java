@@ -0,0 +1,84 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.intranda.goobi.plugins.VocabularyDownload.DownloadSettings;
+import io.goobi.workflow.api.vocabulary.helper.ExtendedVocabularyRecord;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * In memory index of a complete vocabulary. All records are downloaded once and indexed by the values of the search field, so single values can
+ * be looked up without a request to the vocabulary server. The indexes are shared within the JVM and rebuilt when the number of records in the
+ * vocabulary changes, when a change was detected by the {@link VocabularyChangeDetector} or when the index gets older than the configured
+ * maximum age. The vocabulary API provides no version, so changed values of existing records are not noticed by the check of the record count.
+ */
+@Log4j2
+class VocabularyIndex {
+
+    private static final Map<String, VocabularyIndex> INDEXES = new ConcurrentHashMap<>();
+
+    @Getter
+    private final VocabularyDownload download;
+    private final Map<String, List<ExtendedVocabularyRecord>> recordsByValue;
+
+    private VocabularyIndex(VocabularyDownload download, Map<String, List<ExtendedVocabularyRecord>> recordsByValue) {
+        this.download = download;
+        this.recordsByValue = recordsByValue;
+    }
+
+    /**
+     * Get the index for the search field of a vocabulary. The index is created, if it does not exist yet, or rebuilt, if the vocabulary was
+     * changed since the index was created.
+     *
+     * @param resolved the resolved vocabulary containing the search field
+     * @param settings the prefetch settings from the plugin configuration
+     * @return the index
+     */
+    static VocabularyIndex getIndex(ResolvedVocabulary resolved, DownloadSettings settings) {
+        String key = resolved.getVocabulary().getId() + ":" + resolved.getSearchField().getId();
+        return INDEXES.compute(key, (k, existing) -> {
+            if (existing != null && existing.download.isCurrent(resolved, settings)) {
+                return existing;
+            }
+            return build(resolved, settings.pageSize());
+        });
+    }
+
+    /**
+     * Remove all indexes of a vocabulary, so they are rebuilt on the next use
+     *
+     * @param vocabularyId the ID of the vocabulary
+     */
+    static void invalidate(long vocabularyId) {
+        INDEXES.keySet().removeIf(key -> key.startsWith(vocabularyId + ":"));
+    }
+
+    /**
+     * Find all records containing the value in their search field
+     *
+     * @param value the value to search
+     * @return the matching records in the order of the vocabulary
+     */
+    List<ExtendedVocabularyRecord> find(String value) {
+        return recordsByValue.getOrDefault(value, Collections.emptyList());
+    }
+
+    private static VocabularyIndex build(ResolvedVocabulary resolved, int pageSize) {
+        long start = System.currentTimeMillis();
+        Map<String, List<ExtendedVocabularyRecord>> recordsByValue = new HashMap<>();
+        VocabularyDownload download = VocabularyDownload.run(resolved, pageSize, vocabularyRecord -> {
+            for (String value : resolved.getSearchValues(vocabularyRecord)) {
+                recordsByValue.computeIfAbsent(value, v -> new ArrayList<>(1)).add(vocabularyRecord);
+            }
+        });
+        log.info("Indexed {} records of vocabulary {} in {} ms", download.getRecordCount(), resolved.getVocabulary().getName(),
+                System.currentTimeMillis() - start);
+        return new VocabularyIndex(download, recordsByValue);
+    }
+}
@@ -0,0 +1,20 @@
+package de.intranda.goobi.plugins;
+
+import de.intranda.goobi.plugins.YerushaMetadataReplacementPlugin.ReplacementEntry;
+
+/**
+ * Searches a value in the vocabulary of a replacement entry. The plugin uses the vocabulary API of Goobi workflow, other implementations allow to
+ * run the replacement without a vocabulary server, e.g. in benchmarks.
+ */
+@FunctionalInterface
+interface VocabularyLookup {
+
+    /**
+     * Search a value
+     *
+     * @param entry the replacement entry
+     * @param value the value to search
+     * @return the lookup result, {@link VocabularyLookupResult#NOT_FOUND} if the vocabulary does not contain the value
+     */
+    VocabularyLookupResult search(ReplacementEntry entry, String value);
+}
@@ -0,0 +1,125 @@
+package de.intranda.goobi.plugins;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.intranda.goobi.plugins.YerushaMetadataReplacementPlugin.ReplacementEntry;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Size bounded LRU cache for vocabulary search results. There is only one instance per JVM, so all plugin instances and all processes share the
+ * results of previous searches. Entries expire after the configured time to live to pick up changes in the vocabulary.
+ */
+@Log4j2
+class VocabularyLookupCache {
+
+    private static final VocabularyLookupCache INSTANCE = new VocabularyLookupCache();
+
+    private int maxEntries = 10000;
+    private long timeToLive = 600000;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private final Map<String, CachedResult> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1417290532587410294L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    private VocabularyLookupCache() {
+    }
+
+    static VocabularyLookupCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Apply the limits from the plugin configuration. As the cache is shared, the configuration of the last initialized step is used.
+     *
+     * @param maxEntries maximum number of cached values
+     * @param timeToLiveSeconds seconds until a cached value expires
+     */
+    synchronized void configure(int maxEntries, long timeToLiveSeconds) {
+        if (maxEntries != this.maxEntries || timeToLiveSeconds * 1000 != timeToLive) {
+            log.debug("Configure vocabulary lookup cache with {} entries and a time to live of {} seconds", maxEntries, timeToLiveSeconds);
+        }
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLiveSeconds * 1000;
+        // shrink the cache, if the new limit is smaller
+        while (cache.size() > maxEntries) {
+            cache.remove(cache.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Create the cache key for a value. Besides vocabulary, search field and value, the fields read from the record are part of the key, because
+     * different entries can search the same vocabulary field but take different fields from the result.
+     *
+     * @param entry the replacement entry
+     * @param value the value to search
+     * @return the key
+     */
+    static String createKey(ReplacementEntry entry, String value) {
+        return String.join("\u0000", entry.getVocabulary(), entry.getContentSearch(), String.valueOf(entry.getContentReplace()),
+                String.valueOf(entry.getFieldToDynamic()), String.valueOf(entry.getContentAuthority()),
+                String.valueOf(entry.getContentAuthorityUri()), String.valueOf(entry.getContentAuthorityValueUri()), value);
+    }
+
+    /**
+     * Get a cached result
+     *
+     * @param key the key created by {@link #createKey(ReplacementEntry, String)}
+     * @return the cached result or null, if the value is unknown or expired
+     */
+    synchronized VocabularyLookupResult get(String key) {
+        CachedResult cached = cache.get(key);
+        if (cached != null && cached.expires < System.currentTimeMillis()) {
+            cache.remove(key);
+            cached = null;
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return cached.result;
+    }
+
+    synchronized void put(String key, VocabularyLookupResult result) {
+        cache.put(key, new CachedResult(result, System.currentTimeMillis() + timeToLive));
+    }
+
+    /**
+     * Remove the cached results of a vocabulary, e.g. after its records were changed
+     *
+     * @param vocabulary the name of the vocabulary
+     */
+    synchronized void invalidate(String vocabulary) {
+        String prefix = vocabulary + "\u0000";
+        cache.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    synchronized void clear() {
+        cache.clear();
+    }
+
+    synchronized int size() {
+        return cache.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    private record CachedResult(VocabularyLookupResult result, long expires) {
+    }
+}
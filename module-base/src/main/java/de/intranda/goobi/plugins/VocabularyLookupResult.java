@@ -0,0 +1,62 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Collections;
+import java.util.List;
+
+import lombok.Getter;
+
+/**
+ * Immutable outcome of a vocabulary search for a single value. It contains everything that is needed to create the replacement metadata, so
+ * it can be cached and reused without contacting the vocabulary server again.
+ */
+@Getter
+class VocabularyLookupResult {
+
+    /** marker for values without an exact match in the vocabulary */
+    static final VocabularyLookupResult NOT_FOUND = new VocabularyLookupResult(false, Collections.emptyList(), null, null, null, null);
+
+    /**
+     * marker for values rejected by a Bloom filter. The filter may be older than the vocabulary, so unlike {@link #NOT_FOUND} the result is not
+     * cached
+     */
+    static final VocabularyLookupResult FILTERED = new VocabularyLookupResult(false, Collections.emptyList(), null, null, null, null);
+
+    /** marker for values that could not be searched, because the vocabulary server was not available in time */
+    static final VocabularyLookupResult UNAVAILABLE =
+            new VocabularyLookupResult(false, Collections.emptyList(), null, null, null, null, true);
+
+    private final boolean found;
+    private final List<String> replacementValues;
+    // metadata type taken from the fieldToDynamic field of the record, null if not configured or not present
+    private final String fieldTo;
+    private final String authority;
+    private final String authorityUri;
+    private final String authorityValueUri;
+    // true if the result is incomplete because a remote service was not available, such results are not cached
+    private final boolean fallback;
+
+    VocabularyLookupResult(boolean found, List<String> replacementValues, String fieldTo, String authority, String authorityUri,
+            String authorityValueUri) {
+        this(found, replacementValues, fieldTo, authority, authorityUri, authorityValueUri, false);
+    }
+
+    VocabularyLookupResult(boolean found, List<String> replacementValues, String fieldTo, String authority, String authorityUri,
+            String authorityValueUri, boolean fallback) {
+        this.found = found;
+        this.replacementValues = List.copyOf(replacementValues);
+        this.fieldTo = fieldTo;
+        this.authority = authority;
+        this.authorityUri = authorityUri;
+        this.authorityValueUri = authorityValueUri;
+        this.fallback = fallback;
+    }
+
+    /**
+     * Check if the result may be kept in the {@link VocabularyLookupCache}
+     *
+     * @return false for results of unavailable services and values rejected by a Bloom filter
+     */
+    boolean isCacheable() {
+        return !fallback && this != FILTERED;
+    }
+}
@@ -0,0 +1,500 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import de.intranda.goobi.plugins.VocabularyDownload.DownloadSettings;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Memory mapped snapshot of a vocabulary for vocabularies too large to be held in memory. The snapshot maps each value of the search field to
+ * the replacement values and authority data of its record. The file has the following layout:
+ *
+ * <pre>
+ * header  magic number, format version, number of entries, record count and content hash of the vocabulary, creation time, index position
+ * data    for each value: length and UTF-8 bytes of the value, followed by the encoded lookup result, in the order of the vocabulary
+ * index   positions of the entries, sorted by value
+ * </pre>
+ *
+ * Values are compared byte by byte within the mapped file, only the result of a found value is copied to the heap. A snapshot is written to a
+ * temporary file and moved to its final name, so readers always see a complete file. Outdated snapshots are rebuilt in the background while
+ * the old one is still used.
+ */
+@Log4j2
+class VocabularySnapshot {
+
+    private static final int MAGIC = 0x56534e50;
+    static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+
+    // open snapshots by file, shared by all plugin instances
+    private static final Map<Path, VocabularySnapshot> SNAPSHOTS = new ConcurrentHashMap<>();
+    // snapshots currently opened or exported, other callers wait for the same result
+    private static final Map<Path, CompletableFuture<VocabularySnapshot>> LOADING = new ConcurrentHashMap<>();
+    private static final Set<Path> REFRESHING = ConcurrentHashMap.newKeySet();
+    // time of the last detected change by vocabulary ID, snapshots created before are exported again
+    private static final Map<Long, Long> INVALIDATED = new ConcurrentHashMap<>();
+    private static final ExecutorService REFRESH_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "vocabulary-snapshot-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final long fileModified;
+    @Getter
+    private final int entryCount;
+    private final int indexPosition;
+    // record count, content hash and creation time of the exported vocabulary
+    private final VocabularyDownload download;
+
+    private VocabularySnapshot(Path file) throws IOException {
+        this.file = file;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE || channel.size() < HEADER_SIZE) {
+                throw new IOException("Invalid size of vocabulary snapshot " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        fileModified = Files.getLastModifiedTime(file).toMillis();
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported format of vocabulary snapshot " + file);
+        }
+        entryCount = buffer.getInt(8);
+        download = new VocabularyDownload(buffer.getLong(16), buffer.getLong(24), buffer.getLong(32));
+        indexPosition = (int) buffer.getLong(40);
+    }
+
+    /**
+     * Get the snapshot for a vocabulary. A missing snapshot is exported first, an outdated snapshot is replaced in the background.
+     *
+     * @param resolved the resolved vocabulary
+     * @param settings the snapshot settings from the plugin configuration
+     * @param directory the directory of the snapshot files
+     * @return the snapshot
+     */
+    static VocabularySnapshot get(ResolvedVocabulary resolved, DownloadSettings settings, Path directory) {
+        Path snapshotFile = directory.resolve(getFileName(resolved));
+        VocabularySnapshot snapshot = SNAPSHOTS.get(snapshotFile);
+        if (snapshot == null) {
+            snapshot = load(resolved, settings, snapshotFile);
+        }
+        snapshot.refreshIfOutdated(resolved, settings);
+        return SNAPSHOTS.getOrDefault(snapshotFile, snapshot);
+    }
+
+    /**
+     * Open or export a snapshot once. The export runs outside of the map of open snapshots, so snapshots of other vocabularies can be used in
+     * the meantime.
+     */
+    private static VocabularySnapshot load(ResolvedVocabulary resolved, DownloadSettings settings, Path snapshotFile) {
+        CompletableFuture<VocabularySnapshot> loading = new CompletableFuture<>();
+        CompletableFuture<VocabularySnapshot> running = LOADING.putIfAbsent(snapshotFile, loading);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : e;
+            }
+        }
+        try {
+            VocabularySnapshot snapshot = openOrExport(resolved, settings, snapshotFile);
+            SNAPSHOTS.put(snapshotFile, snapshot);
+            loading.complete(snapshot);
+            return snapshot;
+        } catch (RuntimeException e) {
+            loading.completeExceptionally(e);
+            throw e;
+        } finally {
+            LOADING.remove(snapshotFile, loading);
+        }
+    }
+
+    /**
+     * Discard the snapshots of a vocabulary after its records were changed. The files are exported again on the next use, snapshots opened
+     * before are no longer returned.
+     *
+     * @param vocabularyId the ID of the vocabulary
+     */
+    static void invalidate(long vocabularyId) {
+        INVALIDATED.put(vocabularyId, System.currentTimeMillis());
+        SNAPSHOTS.keySet().removeIf(f -> f.getFileName().toString().startsWith("vocabulary_" + vocabularyId + "_"));
+    }
+
+    /**
+     * Open a snapshot file without comparing it with the vocabulary, e.g. a file created with a {@link Writer}
+     *
+     * @param snapshotFile the snapshot file
+     * @return the snapshot
+     * @throws IOException if the file cannot be read or has an unsupported format
+     */
+    static VocabularySnapshot open(Path snapshotFile) throws IOException {
+        return new VocabularySnapshot(snapshotFile);
+    }
+
+    /**
+     * Get the version of the vocabulary contained in the snapshot
+     *
+     * @return record count and content hash
+     */
+    String getVersion() {
+        return download.getVersion();
+    }
+
+    /**
+     * Find the first record containing the value in its search field
+     *
+     * @param value the value to search
+     * @return the lookup result, {@link VocabularyLookupResult#NOT_FOUND} if the vocabulary does not contain the value
+     */
+    VocabularyLookupResult find(String value) {
+        byte[] key = value.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = entryCount - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(buffer, getEntryPosition(mid), key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else {
+                // continue to the left to find the first entry in the order of the vocabulary
+                if (cmp == 0) {
+                    found = mid;
+                }
+                high = mid - 1;
+            }
+        }
+        if (found < 0) {
+            return VocabularyLookupResult.NOT_FOUND;
+        }
+        if (found + 1 < entryCount && compare(buffer, getEntryPosition(found + 1), key) == 0) {
+            log.warn("No unique result found, using first result");
+        }
+        ByteBuffer entry = buffer.duplicate();
+        entry.position(getEntryPosition(found));
+        entry.position(entry.position() + 4 + entry.getInt());
+        return readResult(entry);
+    }
+
+    private int getEntryPosition(int index) {
+        return (int) buffer.getLong(indexPosition + index * 8);
+    }
+
+    private void refreshIfOutdated(ResolvedVocabulary resolved, DownloadSettings settings) {
+        if (download.isCurrent(resolved, settings)) {
+            return;
+        }
+        try {
+            // the file was already replaced by another exporter
+            if (Files.getLastModifiedTime(file).toMillis() != fileModified) {
+                SNAPSHOTS.put(file, new VocabularySnapshot(file));
+                return;
+            }
+        } catch (IOException e) {
+            log.warn("Cannot read vocabulary snapshot {}: {}", file, e.getMessage());
+        }
+        refresh(resolved, settings, file);
+    }
+
+    private static void refresh(ResolvedVocabulary resolved, DownloadSettings settings, Path snapshotFile) {
+        if (!REFRESHING.add(snapshotFile)) {
+            return;
+        }
+        REFRESH_EXECUTOR.execute(() -> {
+            try {
+                export(resolved, settings.pageSize(), snapshotFile);
+                SNAPSHOTS.put(snapshotFile, new VocabularySnapshot(snapshotFile));
+            } catch (IOException | RuntimeException e) {
+                log.error("Cannot refresh snapshot of vocabulary {}", resolved.getVocabulary().getName(), e);
+            } finally {
+                REFRESHING.remove(snapshotFile);
+            }
+        });
+    }
+
+    private static VocabularySnapshot openOrExport(ResolvedVocabulary resolved, DownloadSettings settings, Path snapshotFile) {
+        try {
+            if (Files.exists(snapshotFile)) {
+                try {
+                    VocabularySnapshot snapshot = new VocabularySnapshot(snapshotFile);
+                    if (snapshot.download.getCreated() >= INVALIDATED.getOrDefault(resolved.getVocabulary().getId(), 0L)) {
+                        return snapshot;
+                    }
+                    log.info("Vocabulary {} was changed, the snapshot is exported again", resolved.getVocabulary().getName());
+                } catch (IOException e) {
+                    log.warn("{}, the snapshot is exported again", e.getMessage());
+                }
+            }
+            export(resolved, settings.pageSize(), snapshotFile);
+            return new VocabularySnapshot(snapshotFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write a snapshot of a vocabulary. All records are downloaded page by page and written to the data section directly, only the positions of
+     * the entries are kept in memory to sort them.
+     *
+     * @param resolved the resolved vocabulary
+     * @param pageSize number of records requested at once
+     * @param snapshotFile the file to write, an existing file is replaced
+     */
+    static void export(ResolvedVocabulary resolved, int pageSize, Path snapshotFile) throws IOException {
+        long start = System.currentTimeMillis();
+        try (Writer writer = new Writer(snapshotFile)) {
+            VocabularyDownload download;
+            try {
+                download = VocabularyDownload.run(resolved, pageSize, vocabularyRecord -> {
+                    try {
+                        writer.add(resolved.getSearchValues(vocabularyRecord), resolved.createLookupResult(vocabularyRecord));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.finish(download);
+            log.info("Exported {} values of {} records of vocabulary {} in {} ms", writer.getCount(), download.getRecordCount(),
+                    resolved.getVocabulary().getName(), System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * The name of the snapshot file depends on the vocabulary and on all fields read from the records. The fields are combined in a SHA-256
+     * hash, so different combinations do not share a file.
+     */
+    private static String getFileName(ResolvedVocabulary resolved) {
+        List<String> fieldIds = new ArrayList<>();
+        for (var definition : Arrays.asList(resolved.getSearchField(), resolved.getReplaceField(), resolved.getAuthorityField(),
+                resolved.getAuthorityUriField(), resolved.getAuthorityValueUriField(), resolved.getFieldToDynamicField())) {
+            fieldIds.add(definition == null ? "-" : String.valueOf(definition.getId()));
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(String.join(",", fieldIds).getBytes(StandardCharsets.UTF_8));
+            return "vocabulary_" + resolved.getVocabulary().getId() + "_" + HexFormat.of().formatHex(hash, 0, 16) + ".snapshot";
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compare the value of an entry with a key, both as unsigned UTF-8 bytes
+     */
+    private static int compare(ByteBuffer data, int position, byte[] key) {
+        int length = data.getInt(position);
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = Byte.compareUnsigned(data.get(position + 4 + i), key[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static int compareEntries(ByteBuffer data, long first, long second) {
+        int firstPosition = (int) first;
+        int secondPosition = (int) second;
+        int firstLength = data.getInt(firstPosition);
+        int secondLength = data.getInt(secondPosition);
+        int common = Math.min(firstLength, secondLength);
+        for (int i = 0; i < common; i++) {
+            int cmp = Byte.compareUnsigned(data.get(firstPosition + 4 + i), data.get(secondPosition + 4 + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        if (firstLength != secondLength) {
+            return firstLength - secondLength;
+        }
+        return Long.compare(first, second);
+    }
+
+    /**
+     * Merge sort of the entry positions by the values in the data section
+     */
+    private static long[] sort(ByteBuffer data, long[] positions) {
+        long[] source = positions;
+        long[] target = new long[positions.length];
+        for (int width = 1; width < source.length; width *= 2) {
+            for (int low = 0; low < source.length; low += 2 * width) {
+                int mid = Math.min(low + width, source.length);
+                int high = Math.min(low + 2 * width, source.length);
+                int left = low;
+                int right = mid;
+                for (int i = low; i < high; i++) {
+                    if (left < mid && (right >= high || compareEntries(data, source[left], source[right]) <= 0)) {
+                        target[i] = source[left++];
+                    } else {
+                        target[i] = source[right++];
+                    }
+                }
+            }
+            long[] swap = source;
+            source = target;
+            target = swap;
+        }
+        return source;
+    }
+
+    private static byte[] encode(VocabularyLookupResult lookupResult) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(lookupResult.getReplacementValues().size());
+        for (String replacementValue : lookupResult.getReplacementValues()) {
+            writeString(out, replacementValue);
+        }
+        writeString(out, lookupResult.getFieldTo());
+        writeString(out, lookupResult.getAuthority());
+        writeString(out, lookupResult.getAuthorityUri());
+        writeString(out, lookupResult.getAuthorityValueUri());
+        return bytes.toByteArray();
+    }
+
+    private static VocabularyLookupResult readResult(ByteBuffer entry) {
+        int size = entry.getInt();
+        List<String> replacementValues = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            replacementValues.add(readString(entry));
+        }
+        return new VocabularyLookupResult(true, replacementValues, readString(entry), readString(entry), readString(entry), readString(entry));
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        if (text == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer entry) {
+        int length = entry.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        entry.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a snapshot file. The entries are written to a temporary file in the order they are added, only their positions are kept in memory.
+     * {@link #finish(VocabularyDownload)} sorts the positions by value, appends the index, writes the header and moves the file to its final
+     * name. A writer closed before it was finished deletes the temporary file.
+     */
+    static class Writer implements Closeable {
+        private final Path snapshotFile;
+        private final Path temporaryFile;
+        private final FileChannel channel;
+        private final DataOutputStream out;
+        private long position = HEADER_SIZE;
+        private long[] positions = new long[1024];
+        @Getter
+        private int count;
+        private boolean finished;
+
+        Writer(Path snapshotFile) throws IOException {
+            this.snapshotFile = snapshotFile;
+            Path directory = snapshotFile.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            temporaryFile = Files.createTempFile(directory, snapshotFile.getFileName().toString(), ".tmp");
+            channel = FileChannel.open(temporaryFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 65536));
+            out.write(new byte[HEADER_SIZE]);
+        }
+
+        /**
+         * Add the lookup result of a record for each value of its search field
+         *
+         * @param values the values of the search field
+         * @param lookupResult the lookup result of the record
+         */
+        void add(Collection<String> values, VocabularyLookupResult lookupResult) throws IOException {
+            byte[] payload = encode(lookupResult);
+            for (String value : values) {
+                byte[] key = value.getBytes(StandardCharsets.UTF_8);
+                if (count == positions.length) {
+                    positions = Arrays.copyOf(positions, count * 2);
+                }
+                positions[count++] = position;
+                out.writeInt(key.length);
+                out.write(key);
+                out.write(payload);
+                position += 4 + key.length + payload.length;
+            }
+        }
+
+        /**
+         * Complete the snapshot file
+         *
+         * @param download record count, content hash and time of the download of the vocabulary
+         */
+        void finish(VocabularyDownload download) throws IOException {
+            out.flush();
+            if (position + count * 8L > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + snapshotFile + " exceeds 2 GB");
+            }
+
+            // sort the entries by value, entries with the same value keep the order of the vocabulary
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, position);
+            for (long entryPosition : sort(data, Arrays.copyOf(positions, count))) {
+                out.writeLong(entryPosition);
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(count).putInt(0);
+            header.putLong(download.getRecordCount()).putLong(download.getContentHash()).putLong(download.getCreated()).putLong(position);
+            header.flip();
+            channel.write(header, 0);
+            channel.force(true);
+            channel.close();
+            Files.move(temporaryFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                channel.close();
+                Files.deleteIfExists(temporaryFile);
+            }
+        }
+    }
+}
@@ -2,14 +2,30 @@ package de.intranda.goobi.plugins;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
 
 import org.apache.commons.configuration.HierarchicalConfiguration;
-import org.apache.commons.configuration.SubnodeConfiguration;
 import org.apache.commons.lang3.StringUtils;
+import org.goobi.beans.Ruleset;
 import org.goobi.beans.Step;
 import org.goobi.production.enums.PluginGuiType;
 import org.goobi.production.enums.PluginReturnValue;
@@ -17,19 +33,16 @@ import org.goobi.production.enums.PluginType;
 import org.goobi.production.enums.StepReturnValue;
 import org.goobi.production.plugin.interfaces.IStepPluginVersion2;
 
-import de.intranda.digiverso.normdataimporter.NormDataImporter;
-import de.intranda.digiverso.normdataimporter.model.MarcRecord;
-import de.intranda.digiverso.normdataimporter.model.MarcRecord.DatabaseUrl;
+import de.intranda.goobi.plugins.CircuitBreaker.RemoteUnavailableException;
+import de.intranda.goobi.plugins.ProcessMetrics.Counter;
+import de.intranda.goobi.plugins.ProcessMetrics.Phase;
+import de.intranda.goobi.plugins.RequestLimiter.RemoteCall;
 import de.sub.goobi.config.ConfigPlugins;
+import de.sub.goobi.config.ConfigurationHelper;
 import de.sub.goobi.helper.exceptions.SwapException;
 import io.goobi.vocabulary.exchange.FieldDefinition;
-import io.goobi.vocabulary.exchange.TranslationInstance;
-import io.goobi.vocabulary.exchange.VocabularySchema;
 import io.goobi.workflow.api.vocabulary.VocabularyAPIManager;
-import io.goobi.workflow.api.vocabulary.helper.ExtendedFieldInstance;
-import io.goobi.workflow.api.vocabulary.helper.ExtendedVocabulary;
 import io.goobi.workflow.api.vocabulary.helper.ExtendedVocabularyRecord;
-import lombok.Data;
 import lombok.Getter;
 import lombok.extern.log4j.Log4j2;
 import net.xeoh.plugins.base.annotations.PluginImplementation;
@@ -37,7 +50,6 @@ import ugh.dl.DocStruct;
 import ugh.dl.Fileformat;
 import ugh.dl.Metadata;
 import ugh.dl.MetadataGroup;
-import ugh.dl.MetadataGroupType;
 import ugh.dl.Prefs;
 import ugh.exceptions.MetadataTypeNotAllowedException;
 import ugh.exceptions.PreferencesException;
@@ -65,11 +77,66 @@ public class YerushaMetadataReplacementPlugin implements IStepPluginVersion2 {
 
     private ReplacementConfiguration configuration;
 
+    // vocabularies resolved during the current run, one per replacement entry
+    private transient Map<ReplacementEntry, ResolvedVocabulary> resolvedVocabularies = new ConcurrentHashMap<>();
+
+    // local copies of the vocabularies used during the current run, one per replacement entry
+    private transient Map<ReplacementEntry, Object> localCopies = new ConcurrentHashMap<>();
+
+    // lookup results of the current run, the key is created by VocabularyLookupCache.createKey
+    private transient Map<String, VocabularyLookupResult> resolvedValues = new ConcurrentHashMap<>();
+
+    private transient ViafIdCache viafIdCache;
+
+    private transient RequestLimiter vocabularyLimiter;
+
+    private transient CircuitBreaker vocabularyBreaker;
+
+    // end of the time available for the remote requests of the current run, as returned by System.nanoTime()
+    private transient long deadline = CircuitBreaker.NO_DEADLINE;
+
+    // metadata added and removed during the current run
+    private transient ChangeTracker changes = new ChangeTracker();
+
+    // fingerprint of the current run, stored after the METS file was saved
+    private transient String fingerprint;
+
+    private transient ProcessMetrics metrics = new ProcessMetrics();
+
+    // run the replacement, even if the fingerprint is unchanged
+    private transient boolean ignoreFingerprint;
+
+    // searches values in the vocabularies, can be replaced to run without vocabulary server
+    private transient VocabularyLookup vocabularyLookup = (entry, value) -> searchVocabulary(value, entry);
+
     @Override
     public void initialize(Step step, String returnPath) {
         this.step = step;
-        SubnodeConfiguration myconfig = ConfigPlugins.getProjectAndStepConfig(title, step);
-        configuration = new ReplacementConfiguration(myconfig);
+        configuration = ReplacementConfiguration.forStep(title, step);
+        vocabularyLimiter = RequestLimiter.forRemote(RequestLimiter.VOCABULARY, configuration.getMaxVocabularyRequests());
+        vocabularyBreaker = CircuitBreaker.forRemote(RequestLimiter.VOCABULARY, configuration.getBreakerSettings());
+        // the VIAF cache is created on first use, unless it is shared by a batch
+        viafIdCache = null;
+        if (configuration.isLookupCacheEnabled()) {
+            VocabularyLookupCache.getInstance().configure(configuration.getLookupCacheMaxEntries(), configuration.getLookupCacheTimeToLive());
+        }
+    }
+
+    /**
+     * Initialize the plugin without a step, e.g. to measure the replacement in a benchmark
+     *
+     * @param configuration the replacement plan
+     * @param vocabularyLookup the search used instead of the vocabulary API
+     */
+    void initialize(ReplacementConfiguration configuration, VocabularyLookup vocabularyLookup) {
+        this.configuration = configuration;
+        this.vocabularyLookup = vocabularyLookup;
+        vocabularyLimiter = RequestLimiter.forRemote(RequestLimiter.VOCABULARY, configuration.getMaxVocabularyRequests());
+        vocabularyBreaker = CircuitBreaker.forRemote(RequestLimiter.VOCABULARY, configuration.getBreakerSettings());
+        if (configuration.isLookupCacheEnabled()) {
+            VocabularyLookupCache.getInstance().configure(configuration.getLookupCacheMaxEntries(), configuration.getLookupCacheTimeToLive());
+        }
+        startRun();
     }
 
     @Override
@@ -91,24 +158,16 @@ public class YerushaMetadataReplacementPlugin implements IStepPluginVersion2 {
     public PluginReturnValue run() {
 
         try {
+            resolvedVocabularies = new ConcurrentHashMap<>();
             // read mets file
-            Fileformat ff = step.getProzess().readMetadataFile();
-            Prefs prefs = step.getProzess().getRegelsatz().getPreferences();
-
-            DocStruct logical = ff.getDigitalDocument().getLogicalDocStruct();
-            DocStruct anchor = null;
-            if (logical.getType().isAnchor()) {
-                anchor = logical;
-                logical = logical.getAllChildren().get(0);
+            Fileformat ff = readMetadataFile();
+            if (replaceMetadata(ff)) {
+                saveMetadataFile(ff);
             }
-            for (ReplacementEntry entry : configuration.getEntryList()) {
-
-                if (anchor != null) {
-                    checkMetadata(prefs, anchor, entry);
-                }
-                checkMetadata(prefs, logical, entry);
+            if (configuration.isLookupCacheEnabled()) {
+                VocabularyLookupCache cache = VocabularyLookupCache.getInstance();
+                log.debug("Vocabulary lookup cache: {} entries, {} hits, {} misses", cache.size(), cache.getHits(), cache.getMisses());
             }
-            step.getProzess().writeMetadataFile(ff);
         } catch (ReadException | PreferencesException | WriteException | IOException | SwapException e) {
             log.error(e);
         }
@@ -116,141 +175,493 @@ public class YerushaMetadataReplacementPlugin implements IStepPluginVersion2 {
         return PluginReturnValue.FINISH;
     }
 
-    private void checkMetadata(Prefs prefs, DocStruct docstruct, ReplacementEntry entry) {
+    /**
+     * Read the METS file of the process
+     *
+     * @return the METS file
+     */
+    Fileformat readMetadataFile() throws ReadException, IOException, PreferencesException, SwapException {
+        metrics = new ProcessMetrics();
+        long start = System.nanoTime();
+        Fileformat ff = step.getProzess().readMetadataFile();
+        metrics.time(Phase.READ, start);
+        return ff;
+    }
+
+    /**
+     * Replace the metadata of the METS file. All distinct values are collected and resolved first, the results are applied afterwards.
+     *
+     * @param ff the METS file of the process
+     * @return false, if the process was skipped because neither the metadata nor the vocabularies were changed since the last run
+     */
+    boolean replaceMetadata(Fileformat ff) throws PreferencesException, IOException, SwapException {
+        startRun();
+        Ruleset ruleset = step.getProzess().getRegelsatz();
+        RulesetTypes types = configuration.getRulesetTypes(ruleset.getDatei(), ruleset.getPreferences());
+
+        DocStruct topStruct = ff.getDigitalDocument().getLogicalDocStruct();
+        List<DocStruct> docstructs = getDocStructs(topStruct);
+        Map<ReplacementEntry, Set<String>> valuesPerEntry = collectValues(docstructs);
+        if (configuration.isReverseIndexEnabled()) {
+            updateReverseIndex(valuesPerEntry);
+        }
+
+        // skip the process, if neither the metadata nor the vocabularies were changed since the last run
+        Map<String, String> vocabularyVersions = null;
+        if (configuration.isFingerprintEnabled()) {
+            try {
+                vocabularyVersions = getVocabularyVersions();
+            } catch (RemoteUnavailableException e) {
+                // without the versions the process is neither skipped nor gets a fingerprint
+                log.warn("Cannot get the versions of the vocabularies, the process is not skipped: {}", e.getMessage());
+            }
+        }
+        if (vocabularyVersions != null) {
+            String previous = ProcessFingerprint.read(Paths.get(step.getProzess().getProcessDataDirectory()), configuration.getFingerprintMaxAge());
+            if (!ignoreFingerprint && ProcessFingerprint.create(configuration, docstructs, vocabularyVersions).equals(previous)) {
+                log.debug("Metadata and vocabularies of process {} are unchanged, skip replacement", step.getProzess().getId());
+                publishMetrics("skipped", false);
+                return false;
+            }
+        }
+
+        long start = System.nanoTime();
+        resolveValues(valuesPerEntry);
+        metrics.time(Phase.LOOKUP, start);
 
-        if (StringUtils.isNotBlank(entry.getMetadataGroup())) {
-            changeMetadataGroups(prefs, docstruct, entry);
+        start = System.nanoTime();
+        if (configuration.isLogicalTreeEnabled() && configuration.getLogicalTreeParallelism() > 1 && docstructs.size() > 1) {
+            changeLogicalTree(types, topStruct);
         } else {
-            changeMetadata(prefs, docstruct, entry);
+            for (DocStruct docstruct : docstructs) {
+                changeDocStruct(types, docstruct);
+            }
+        }
+        metrics.time(Phase.UPDATE, start);
+
+        long fallbacks = metrics.getCount(Counter.VOCABULARY_FALLBACKS) + metrics.getCount(Counter.VIAF_FALLBACKS);
+        if (fallbacks > 0) {
+            // no fingerprint is stored, so the process is not skipped on the next run
+            log.warn("Process {} was changed with {} fallback values, because remote services were not available", step.getProzess().getId(),
+                    fallbacks);
+        } else if (vocabularyVersions != null) {
+            fingerprint = ProcessFingerprint.create(configuration, docstructs, vocabularyVersions);
         }
+        return true;
     }
 
-    private void changeMetadataGroups(Prefs prefs, DocStruct ds, ReplacementEntry entry) {
+    /**
+     * Check if the last replacement used fallback values, because remote services were not available
+     *
+     * @return true, if at least one value was kept or taken from a fallback
+     */
+    boolean hasFallbacks() {
+        return metrics.getCount(Counter.VOCABULARY_FALLBACKS) + metrics.getCount(Counter.VIAF_FALLBACKS) > 0;
+    }
 
-        MetadataGroupType mgt = prefs.getMetadataGroupTypeByName(entry.getMetadataGroup());
+    /**
+     * Get the docstructs to process. Without logicalTree/enabled these are the anchor and its first child or the top docstruct, otherwise all
+     * docstructs of the logical tree in depth-first order.
+     *
+     * @param topStruct the top docstruct of the logical tree
+     * @return the docstructs to process
+     */
+    private List<DocStruct> getDocStructs(DocStruct topStruct) {
+        List<DocStruct> docstructs = new ArrayList<>();
+        if (configuration.isLogicalTreeEnabled()) {
+            addSubtree(topStruct, docstructs);
+            log.debug("Process {} contains {} logical docstructs", step.getProzess().getId(), docstructs.size());
+            return docstructs;
+        }
+        DocStruct logical = topStruct;
+        if (logical.getType().isAnchor()) {
+            docstructs.add(logical);
+            logical = logical.getAllChildren().get(0);
+        }
+        docstructs.add(logical);
+        return docstructs;
+    }
 
-        // run through all configured groups
-        for (MetadataGroup group : ds.getAllMetadataGroupsByType(mgt)) {
+    private void addSubtree(DocStruct docstruct, List<DocStruct> docstructs) {
+        docstructs.add(docstruct);
+        if (docstruct.getAllChildren() != null) {
+            for (DocStruct child : docstruct.getAllChildren()) {
+                addSubtree(child, docstructs);
+            }
+        }
+    }
 
-            // collect original metadata and generated fields
-            List<Metadata> originalMetadata = new ArrayList<>();
-            List<Metadata> generatedMetadataList = new ArrayList<>();
-            for (Metadata md : group.getMetadataList()) {
-                if (md.getType().getName().equals(entry.getFieldFrom())) {
-                    originalMetadata.add(md);
-                } else if (md.getType().getName().equals(entry.getFieldTo())) {
-                    generatedMetadataList.add(md);
+    /**
+     * Apply all entries to the complete logical tree. The subtrees of the children are processed in parallel by a fork join pool, all values were
+     * resolved before. As each docstruct only changes its own metadata, the result does not depend on the order in which the subtrees finish.
+     *
+     * @param types the metadata types of the ruleset
+     * @param topStruct the top docstruct of the logical tree
+     */
+    private void changeLogicalTree(RulesetTypes types, DocStruct topStruct) {
+        // own pool, because values created by a previous entry may still be searched in the vocabulary
+        ForkJoinPool pool = new ForkJoinPool(configuration.getLogicalTreeParallelism());
+        try {
+            pool.invoke(new SubtreeChange(types, topStruct));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Reset the values resolved and the changes recorded by the previous run
+     */
+    void startRun() {
+        resolvedValues = new ConcurrentHashMap<>();
+        localCopies = new ConcurrentHashMap<>();
+        changes = new ChangeTracker();
+        fingerprint = null;
+        deadline = CircuitBreaker.getDeadline(configuration.getProcessTimeout());
+    }
+
+    /**
+     * Write the METS file, if metadata was changed by {@link #replaceMetadata(Fileformat)}, and store the fingerprint of the run
+     *
+     * @param ff the changed METS file
+     * @return true, if the METS file was written
+     */
+    boolean saveMetadataFile(Fileformat ff) throws WriteException, PreferencesException, IOException, SwapException {
+        boolean written = false;
+        if (changes.hasChanges()) {
+            long start = System.nanoTime();
+            step.getProzess().writeMetadataFile(ff);
+            metrics.time(Phase.WRITE, start);
+            written = true;
+        } else {
+            log.debug("No metadata changed in process {}, METS file is not written", step.getProzess().getId());
+        }
+        if (fingerprint != null) {
+            ProcessFingerprint.write(Paths.get(step.getProzess().getProcessDataDirectory()), fingerprint);
+        }
+        publishMetrics(written ? "written" : "unchanged", written);
+        return written;
+    }
+
+    /**
+     * Add the metrics of the run to the JMX metrics and log a summary, so slow processes can be found in the log
+     *
+     * @param result short description of the result
+     * @param written true if the METS file was written
+     */
+    private void publishMetrics(String result, boolean written) {
+        ReplacementMetrics.getInstance().record(metrics, changes, written);
+        log.info("Metadata replacement of process {} {} after {} ms: read {} ms, lookup {} ms, VIAF {} ms, update {} ms, write {} ms, "
+                + "{} lookups, {} cache hits, {} skipped by filter, {} matched, {} missing, {} VIAF requests, {} vocabulary fallbacks, "
+                + "{} VIAF fallbacks, {} added, {} removed", step.getProzess().getId(), result, metrics.getTotalMillis(),
+                metrics.getMillis(Phase.READ), metrics.getMillis(Phase.LOOKUP), metrics.getMillis(Phase.VIAF), metrics.getMillis(Phase.UPDATE),
+                metrics.getMillis(Phase.WRITE), metrics.getCount(Counter.LOOKUPS), metrics.getCount(Counter.CACHE_HITS),
+                metrics.getCount(Counter.FILTERED_LOOKUPS), metrics.getCount(Counter.RECORDS_MATCHED), metrics.getCount(Counter.RECORDS_MISSING),
+                metrics.getCount(Counter.VIAF_REQUESTS), metrics.getCount(Counter.VOCABULARY_FALLBACKS), metrics.getCount(Counter.VIAF_FALLBACKS),
+                changes.getAdded(), changes.getRemoved());
+    }
+
+    /**
+     * Run the replacement, even if neither the metadata nor the vocabularies seem to be changed. This is needed when the change of a vocabulary
+     * record was detected, because the version of a vocabulary that is not prefetched only contains the number of records.
+     *
+     * @param ignoreFingerprint true to ignore the stored fingerprint
+     */
+    void setIgnoreFingerprint(boolean ignoreFingerprint) {
+        this.ignoreFingerprint = ignoreFingerprint;
+    }
+
+    /**
+     * Store the source values of the process in the reverse index, so the process can be found when a vocabulary record is changed
+     *
+     * @param valuesPerEntry the values collected for each entry
+     */
+    private void updateReverseIndex(Map<ReplacementEntry, Set<String>> valuesPerEntry) {
+        Set<String> keys = new HashSet<>();
+        valuesPerEntry.forEach((entry, values) -> {
+            for (String value : values) {
+                keys.add(ReverseValueIndex.createKey(entry.getVocabulary(), entry.getContentSearch(), value));
+            }
+        });
+        ReverseValueIndex.forDirectory(configuration.getReverseIndexDirectory()).update(step.getProzess().getId(), keys);
+    }
+
+    /**
+     * Share the resolved vocabularies with other plugin instances, e.g. when many processes are changed by a {@link MetadataReplacementBatch}
+     *
+     * @param resolvedVocabularies the vocabularies resolved for each replacement entry
+     */
+    void shareResolvedVocabularies(Map<ReplacementEntry, ResolvedVocabulary> resolvedVocabularies) {
+        this.resolvedVocabularies = resolvedVocabularies;
+    }
+
+    /**
+     * Use the VIAF caches of a batch, so the resolver and the cache are not created again for each process
+     *
+     * @param viafIdCaches the caches by VIAF settings, a missing cache is created and added
+     */
+    void shareViafIdCaches(Map<ViafIdCache.ViafSettings, ViafIdCache> viafIdCaches) {
+        viafIdCache = viafIdCaches.computeIfAbsent(configuration.getViafSettings(), s -> createViafIdCache());
+    }
+
+    /**
+     * Get the current version of each vocabulary used by the configuration
+     *
+     * @return the versions by vocabulary name and search field
+     * @throws RemoteUnavailableException if a vocabulary could not be requested in time
+     */
+    private Map<String, String> getVocabularyVersions() throws RemoteUnavailableException {
+        Map<String, String> versions = new HashMap<>();
+        for (ReplacementEntry entry : configuration.getEntryList()) {
+            String key = entry.getVocabulary() + ":" + entry.getContentSearch();
+            if (!versions.containsKey(key)) {
+                ResolvedVocabulary resolved = getResolvedVocabulary(entry);
+                // the fingerprint is only enabled, if all entries use a local copy of the vocabulary
+                if (resolved.isSearchable() && entry.isSnapshot()) {
+                    versions.put(key, getSnapshot(resolved, entry).getVersion());
+                } else if (resolved.isSearchable()) {
+                    versions.put(key, getIndex(resolved, entry).getDownload().getVersion());
                 }
             }
+        }
+        return versions;
+    }
 
-            // remove old generated metadata
-            if (entry.deleteExistingFieldTo && !generatedMetadataList.isEmpty()) {
-                for (Metadata md : generatedMetadataList) {
-                    group.removeMetadata(md, true);
+    /**
+     * Collect the distinct values of all configured source fields. Each docstruct and metadata group is read only once, every metadata is passed
+     * to all entries using it as source field.
+     *
+     * @param docstructs the docstructs to process
+     * @return the split and trimmed values for each entry
+     */
+    Map<ReplacementEntry, Set<String>> collectValues(List<DocStruct> docstructs) {
+        Map<ReplacementEntry, Set<String>> valuesPerEntry = new LinkedHashMap<>();
+        for (ReplacementEntry entry : configuration.getEntryList()) {
+            valuesPerEntry.put(entry, new LinkedHashSet<>());
+        }
+        for (DocStruct docstruct : docstructs) {
+            collectValues(docstruct.getAllMetadata(), configuration.getMetadataEntriesByFieldFrom(), valuesPerEntry);
+            if (!configuration.getGroupEntriesByFieldFrom().isEmpty() && docstruct.getAllMetadataGroups() != null) {
+                for (MetadataGroup group : docstruct.getAllMetadataGroups()) {
+                    Map<String, List<ReplacementEntry>> entriesByFieldFrom =
+                            configuration.getGroupEntriesByFieldFrom().get(group.getType().getName());
+                    if (entriesByFieldFrom != null) {
+                        collectValues(group.getMetadataList(), entriesByFieldFrom, valuesPerEntry);
+                    }
                 }
             }
-            for (Metadata md : originalMetadata) {
-                String value = md.getValue();
+        }
+        return valuesPerEntry;
+    }
 
-                // split the original metadata at delimiter to separate values
-                String[] splitValues = new String[] { value };
-                if (entry.metadataDelimiter != null && entry.metadataDelimiter.length() > 0) {
-                    splitValues = value.split(entry.metadataDelimiter);
+    private void collectValues(List<Metadata> metadataList, Map<String, List<ReplacementEntry>> entriesByFieldFrom,
+            Map<ReplacementEntry, Set<String>> valuesPerEntry) {
+        if (metadataList == null) {
+            return;
+        }
+        for (Metadata md : metadataList) {
+            List<ReplacementEntry> entries = entriesByFieldFrom.get(md.getType().getName());
+            if (entries != null) {
+                for (ReplacementEntry entry : entries) {
+                    for (String splittedValue : entry.split(md.getValue())) {
+                        valuesPerEntry.get(entry).add(splittedValue.trim());
+                    }
                 }
-                // for each value generate new metadata
-                for (String splittedValue : splitValues) {
-                    try {
-                        // get normed value from configured vocabulary
+            }
+        }
+    }
 
-                        List<Metadata> newListMd = getNormedMetadata(splittedValue.trim(), entry, prefs, md);
-                        for (Metadata newMetadata : newListMd) {
+    /**
+     * Look up all collected values. Values used in more than one place or by several entries with the same vocabulary settings are only
+     * searched once. If more than one concurrent request is allowed, the values are resolved by a bounded thread pool. The metadata is changed
+     * afterwards in the original order, so the result does not depend on the order in which the requests are finished.
+     *
+     * @param valuesPerEntry the values to resolve for each entry
+     */
+    void resolveValues(Map<ReplacementEntry, Set<String>> valuesPerEntry) {
+        Map<String, Runnable> lookups = new LinkedHashMap<>();
+        for (Map.Entry<ReplacementEntry, Set<String>> e : valuesPerEntry.entrySet()) {
+            for (String value : e.getValue()) {
+                lookups.putIfAbsent(VocabularyLookupCache.createKey(e.getKey(), value), () -> lookupValue(value, e.getKey()));
+            }
+        }
+        if (configuration.getMaxVocabularyRequests() <= 1 || lookups.size() <= 1) {
+            lookups.values().forEach(Runnable::run);
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(configuration.getMaxVocabularyRequests(), lookups.size()));
+            try {
+                List<Future<?>> futures = new ArrayList<>(lookups.size());
+                for (Runnable lookup : lookups.values()) {
+                    futures.add(executor.submit(lookup));
+                }
+                for (Future<?> future : futures) {
+                    waitForLookup(future);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        log.debug("Resolved {} distinct values", resolvedValues.size());
+    }
 
-                            // first run through all existing metadata to make sure it is not there already - to not have it twice
-                            boolean newFieldExistsAlready = false;
-                            for (Metadata mdTemp : group.getMetadataList()) {
-                                if (mdTemp.getType().getName().equals(newMetadata.getType().getName())
-                                        && mdTemp.getValue().equals(newMetadata.getValue())) {
-                                    newFieldExistsAlready = true;
-                                    break;
-                                }
-                            }
-                            if (!newFieldExistsAlready) {
-                                group.addMetadata(newMetadata);
-                            }
-                        }
-                    } catch (MetadataTypeNotAllowedException e) {
-                        log.error(e);
+    private void waitForLookup(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            // errors in a lookup are handled like errors in the sequential execution
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Apply all entries to a docstruct. The metadata of the docstruct and of each metadata group is indexed once and the index is shared by all
+     * entries. The entries are applied in the configured order, so the result is the same as running through the metadata for each entry.
+     *
+     * @param types the metadata types of the ruleset
+     * @param docstruct the docstruct to change
+     */
+    void changeDocStruct(RulesetTypes types, DocStruct docstruct) {
+        if (!configuration.getMetadataEntries().isEmpty()) {
+            MetadataValueIndex index = new MetadataValueIndex(docstruct.getAllMetadata());
+            for (ReplacementEntry entry : configuration.getMetadataEntries()) {
+                changeMetadata(types, docstruct, entry, index);
+            }
+        }
+        if (!configuration.getGroupEntries().isEmpty() && docstruct.getAllMetadataGroups() != null) {
+            // run through all configured groups
+            for (MetadataGroup group : docstruct.getAllMetadataGroups()) {
+                List<ReplacementEntry> entries = configuration.getGroupEntries().get(group.getType().getName());
+                if (entries != null) {
+                    MetadataValueIndex index = new MetadataValueIndex(group.getMetadataList());
+                    for (ReplacementEntry entry : entries) {
+                        changeMetadataGroup(types, group, entry, index);
                     }
                 }
             }
+        }
+    }
 
-            // remove duplicated fieldTo metadata if wanted
-            if (entry.removeDuplicatedFieldTo) {
-                List<Metadata> temp = new ArrayList<>(group.getMetadataByType(entry.getFieldTo()));
-                List<String> knownList = new ArrayList<>();
-                for (Metadata mdTemp : temp) {
-                    String v = mdTemp.getValue();
-                    if (knownList.contains(v)) {
-                        group.removeMetadata(mdTemp, true);
-                    } else {
-                        knownList.add(v);
-                    }
+    /**
+     * Applies all entries to a docstruct, while the subtrees of its children are processed by other tasks
+     */
+    private class SubtreeChange extends RecursiveAction {
+        private static final long serialVersionUID = 6271738527402938315L;
+
+        private final transient RulesetTypes types;
+        private final transient DocStruct docstruct;
+
+        SubtreeChange(RulesetTypes types, DocStruct docstruct) {
+            this.types = types;
+            this.docstruct = docstruct;
+        }
+
+        @Override
+        protected void compute() {
+            List<SubtreeChange> subtrees = new ArrayList<>();
+            if (docstruct.getAllChildren() != null) {
+                for (DocStruct child : docstruct.getAllChildren()) {
+                    SubtreeChange subtree = new SubtreeChange(types, child);
+                    subtree.fork();
+                    subtrees.add(subtree);
                 }
             }
+            changeDocStruct(types, docstruct);
+            for (SubtreeChange subtree : subtrees) {
+                subtree.join();
+            }
         }
     }
 
-    private void changeMetadata(Prefs prefs, DocStruct docstruct, ReplacementEntry entry) {
-        // find original metadata and generated metadata from previous runs
+    private void changeMetadataGroup(RulesetTypes types, MetadataGroup group, ReplacementEntry entry, MetadataValueIndex index) {
+        // collect original metadata and generated fields
+        List<Metadata> originalMetadata = index.getMetadataByType(entry.getFieldFrom());
+        List<Metadata> generatedMetadataList =
+                StringUtils.equals(entry.getFieldTo(), entry.getFieldFrom()) ? new ArrayList<>() : index.getMetadataByType(entry.getFieldTo());
 
-        List<Metadata> originalMetadata = new ArrayList<>();
-        List<Metadata> generatedMetadataList = new ArrayList<>();
-        for (Metadata md : docstruct.getAllMetadata()) {
-            if (md.getType().getName().equals(entry.getFieldFrom())) {
-                originalMetadata.add(md);
-            } else if (md.getType().getName().equals(entry.getFieldTo())) {
-                generatedMetadataList.add(md);
+        // remove old generated metadata
+        if (entry.deleteExistingFieldTo && !generatedMetadataList.isEmpty()) {
+            for (Metadata md : generatedMetadataList) {
+                if (group.removeMetadata(md, true)) {
+                    index.remove(md);
+                    changes.removed(md);
+                }
             }
         }
+        for (Metadata md : originalMetadata) {
+            String[] splitValues = entry.split(md.getValue());
+            // for each value generate new metadata
+            for (String splittedValue : splitValues) {
+                try {
+                    // get normed value from configured vocabulary
+
+                    List<Metadata> newListMd = getNormedMetadata(splittedValue.trim(), entry, types, md);
+                    for (Metadata newMetadata : newListMd) {
+
+                        // first check the existing metadata to make sure it is not there already - to not have it twice
+                        if (!index.contains(newMetadata)) {
+                            group.addMetadata(newMetadata);
+                            index.add(newMetadata);
+                            changes.added(newMetadata);
+                        }
+                    }
+                } catch (MetadataTypeNotAllowedException e) {
+                    log.error(e);
+                }
+            }
+        }
+
+        // remove duplicated fieldTo metadata if wanted
+        if (entry.removeDuplicatedFieldTo) {
+            List<Metadata> temp = index.getMetadataByType(entry.getFieldTo());
+            Set<String> knownValues = new HashSet<>();
+            for (Metadata mdTemp : temp) {
+                if (!knownValues.add(mdTemp.getValue()) && group.removeMetadata(mdTemp, true)) {
+                    index.remove(mdTemp);
+                    changes.removed(mdTemp);
+                }
+            }
+        }
+    }
+
+    private void changeMetadata(RulesetTypes types, DocStruct docstruct, ReplacementEntry entry, MetadataValueIndex index) {
+        // find original metadata and generated metadata from previous runs
+        List<Metadata> originalMetadata = index.getMetadataByType(entry.getFieldFrom());
+        List<Metadata> generatedMetadataList =
+                StringUtils.equals(entry.getFieldTo(), entry.getFieldFrom()) ? new ArrayList<>() : index.getMetadataByType(entry.getFieldTo());
+
         // remove old generated metadata
         if (entry.deleteExistingFieldTo && !generatedMetadataList.isEmpty()) {
             for (Metadata md : generatedMetadataList) {
-                docstruct.removeMetadata(md);
+                if (docstruct.removeMetadata(md)) {
+                    index.remove(md);
+                    changes.removed(md);
+                }
             }
         }
 
         // read original metadata
         if (!originalMetadata.isEmpty()) {
             for (Metadata md : originalMetadata) {
-                String value = md.getValue();
-
-                // split the original metadata at delimiter to separate values
-                String[] splitValues = new String[] { value };
-                if (entry.metadataDelimiter != null && entry.metadataDelimiter.length() > 0) {
-                    splitValues = value.split(entry.metadataDelimiter);
-                }
+                String[] splitValues = entry.split(md.getValue());
 
                 // for each value generate new metadata
                 for (String splittedValue : splitValues) {
                     try {
                         // get normed value from configured vocabulary
 
-                        List<Metadata> newListMd = getNormedMetadata(splittedValue.trim(), entry, prefs, md);
+                        List<Metadata> newListMd = getNormedMetadata(splittedValue.trim(), entry, types, md);
                         for (Metadata newMetadata : newListMd) {
 
-                            // first run through all existing metadata to make sure it is not there already - to not have it twice
-                            boolean newFieldExistsAlready = false;
-                            for (Metadata mdTemp : docstruct.getAllMetadata()) {
-                                if (mdTemp.getType().getName().equals(newMetadata.getType().getName())
-                                        && mdTemp.getValue().equals(newMetadata.getValue())) {
-                                    newFieldExistsAlready = true;
-                                    break;
-                                }
-
-                            }
-
-                            if (!newFieldExistsAlready) {
+                            // first check the existing metadata to make sure it is not there already - to not have it twice
+                            if (!index.contains(newMetadata)) {
                                 docstruct.addMetadata(newMetadata);
+                                index.add(newMetadata);
+                                changes.added(newMetadata);
                             }
                         }
                     } catch (MetadataTypeNotAllowedException e) {
@@ -262,28 +673,26 @@ public class YerushaMetadataReplacementPlugin implements IStepPluginVersion2 {
 
         // remove duplicated fieldTo metadata if wanted
         if (entry.removeDuplicatedFieldTo) {
-            List<Metadata> temp = new ArrayList<>(docstruct.getAllMetadataByType(prefs.getMetadataTypeByName(entry.getFieldTo())));
-            List<String> knownList = new ArrayList<>();
+            List<Metadata> temp = index.getMetadataByType(entry.getFieldTo());
+            Set<String> knownValues = new HashSet<>();
             for (Metadata mdTemp : temp) {
-                String v = mdTemp.getValue();
-                if (knownList.contains(v)) {
-                    docstruct.removeMetadata(mdTemp);
-                } else {
-                    knownList.add(v);
+                if (!knownValues.add(mdTemp.getValue()) && docstruct.removeMetadata(mdTemp)) {
+                    index.remove(mdTemp);
+                    changes.removed(mdTemp);
                 }
             }
         }
     }
 
-    private List<Metadata> getNormedMetadata(String value, ReplacementEntry entry, Prefs prefs, Metadata originalMetadata)
+    private List<Metadata> getNormedMetadata(String value, ReplacementEntry entry, RulesetTypes types, Metadata originalMetadata)
             throws MetadataTypeNotAllowedException {
         List<Metadata> listMd = new ArrayList<>();
 
-        performVocabularyBasedMetadataUpdates(listMd, value, entry, prefs, originalMetadata);
+        performVocabularyBasedMetadataUpdates(listMd, value, entry, types, originalMetadata);
 
         // return the original value, if no record was found and if it should be duplicated
         if (listMd.isEmpty() && entry.duplicateIfMissing) {
-            Metadata md = new Metadata(prefs.getMetadataTypeByName(entry.getFieldTo()));
+            Metadata md = new Metadata(types.getMetadataType(entry.getFieldTo()));
             md.setValue(value);
             md.setAuthorityID(originalMetadata.getAuthorityID());
             md.setAuthorityURI(originalMetadata.getAuthorityURI());
@@ -293,86 +702,267 @@ public class YerushaMetadataReplacementPlugin implements IStepPluginVersion2 {
         return listMd;
     }
 
-    private void performVocabularyBasedMetadataUpdates(List<Metadata> resultList, String value, ReplacementEntry entry, Prefs prefs,
+    private void performVocabularyBasedMetadataUpdates(List<Metadata> resultList, String value, ReplacementEntry entry, RulesetTypes types,
             Metadata originalMetadata) throws MetadataTypeNotAllowedException {
-        // search for a record containing the search value
-        ExtendedVocabulary vocabulary = VocabularyAPIManager.getInstance().vocabularies().findByName(entry.getVocabulary());
-        VocabularySchema schema = VocabularyAPIManager.getInstance().vocabularySchemas().get(vocabulary.getSchemaId());
-        Optional<FieldDefinition> searchField = schema.getDefinitions()
-                .stream()
-                .filter(d -> d.getName().equals(entry.getContentSearch()))
-                .findFirst();
-
-        if (searchField.isEmpty()) {
+        VocabularyLookupResult lookupResult = lookupValue(value, entry);
+        if (!lookupResult.isFound()) {
             return;
         }
-        List<ExtendedVocabularyRecord> results = VocabularyAPIManager.getInstance()
-                .vocabularyRecords()
-                .list(vocabulary.getId())
-                .search(searchField.get().getId() + ":" + value)
-                .all()
-                .request()
-                .getContent()
-                .stream()
-                .filter(r -> isExactMatch(r, searchField.get(), value))
-                .toList();
-
-        if (results.isEmpty()) {
-            return;
+
+        // after record was loaded, get the normed value, if a fieldToDynamic is defined, it was taken from the vocabulary record
+        String fieldTo = entry.getFieldTo();
+        if (!StringUtils.isEmpty(entry.getFieldToDynamic()) && lookupResult.getFieldTo() != null) {
+            fieldTo = lookupResult.getFieldTo();
         }
 
-        if (results.size() != 1) {
-            log.warn("No unique result found, using first result");
+        for (String replacementValue : lookupResult.getReplacementValues()) {
+            Metadata md = new Metadata(types.getMetadataType(fieldTo));
+            md.setValue(replacementValue);
+
+            // if an authority value url is given in the vocabulary take this
+            if (!StringUtils.isEmpty(lookupResult.getAuthorityValueUri())) {
+                md.setAuthorityID(lookupResult.getAuthority());
+                md.setAuthorityURI(lookupResult.getAuthorityUri());
+                md.setAuthorityValue(lookupResult.getAuthorityValueUri());
+            } else {
+                // if not authority is contained in the vocabulary take it from the original record
+                md.setAuthorityID(originalMetadata.getAuthorityID());
+                md.setAuthorityURI(originalMetadata.getAuthorityURI());
+                md.setAuthorityValue(originalMetadata.getAuthorityValue());
+            }
+            resultList.add(md);
         }
+    }
 
-        ExtendedVocabularyRecord result = results.get(0);
+    /**
+     * Get the replacement information for a value. Values are normally resolved before the metadata is changed, values created by a previous
+     * entry are resolved when they are needed.
+     *
+     * @param value the value to search
+     * @param entry the replacement entry
+     * @return the lookup result, {@link VocabularyLookupResult#NOT_FOUND} if the vocabulary does not contain the value
+     */
+    private VocabularyLookupResult lookupValue(String value, ReplacementEntry entry) {
+        String key = VocabularyLookupCache.createKey(entry, value);
+        VocabularyLookupResult lookupResult = resolvedValues.get(key);
+        if (lookupResult == null) {
+            lookupResult = fetchValue(value, entry);
+            resolvedValues.put(key, lookupResult);
+        }
+        return lookupResult;
+    }
 
-        // after record was loaded, get the normed value
-        String fieldTo = entry.getFieldTo();
-        String fieldToDynamic = entry.getFieldToDynamic();
+    /**
+     * Get the replacement information for a value, either from the shared lookup cache or from the vocabulary
+     *
+     * @param value the value to search
+     * @param entry the replacement entry
+     * @return the lookup result, {@link VocabularyLookupResult#NOT_FOUND} if the vocabulary does not contain the value
+     */
+    private VocabularyLookupResult fetchValue(String value, ReplacementEntry entry) {
+        metrics.count(Counter.LOOKUPS);
+        if (!entry.isUseLookupCache() || !configuration.isLookupCacheEnabled()) {
+            return vocabularyLookup.search(entry, value);
+        }
+        VocabularyLookupCache cache = VocabularyLookupCache.getInstance();
+        String key = VocabularyLookupCache.createKey(entry, value);
+        VocabularyLookupResult lookupResult = cache.get(key);
+        if (lookupResult == null) {
+            lookupResult = vocabularyLookup.search(entry, value);
+            // results of unavailable services and values rejected by a Bloom filter are searched again in the next run
+            if (lookupResult.isCacheable()) {
+                cache.put(key, lookupResult);
+            }
+        } else {
+            metrics.count(Counter.CACHE_HITS);
+        }
+        return lookupResult;
+    }
 
-        // if a fieldToDynamic is defined, get it from the vocabulary record
-        if (!StringUtils.isEmpty(fieldToDynamic)) {
-            fieldTo = result.getFieldValueForDefinitionName(fieldToDynamic).orElse(fieldTo);
+    private VocabularyLookupResult searchVocabulary(String value, ReplacementEntry entry) {
+        long start = System.nanoTime();
+        VocabularyLookupResult lookupResult;
+        try {
+            ResolvedVocabulary resolved = getResolvedVocabulary(entry);
+            if (!resolved.isSearchable()) {
+                return VocabularyLookupResult.NOT_FOUND;
+            }
+            lookupResult = findRecord(resolved, entry, value);
+        } catch (RemoteUnavailableException e) {
+            // the value is handled like a missing value, so duplicateIfMissing applies
+            log.warn("Cannot search value '{}' in vocabulary {}: {}", value, entry.getVocabulary(), e.getMessage());
+            metrics.count(Counter.VOCABULARY_FALLBACKS);
+            // timeouts and open circuits are part of the lookup latency
+            ReplacementMetrics.getInstance().recordLookup(entry.getVocabulary(), System.nanoTime() - start);
+            return VocabularyLookupResult.UNAVAILABLE;
+        }
+        ReplacementMetrics.getInstance().recordLookup(entry.getVocabulary(), System.nanoTime() - start);
+
+        if (!lookupResult.isFound()) {
+            metrics.count(Counter.RECORDS_MISSING);
+            return lookupResult;
         }
+        metrics.count(Counter.RECORDS_MATCHED);
 
-        String contentAuthority = result.getFieldValueForDefinitionName(entry.getContentAuthority()).orElse(null);
-        String contentAuthorityUri = result.getFieldValueForDefinitionName(entry.getContentAuthorityUri()).orElse(null);
-        String contentAuthorityValueUri = result.getFieldValueForDefinitionName(entry.getContentAuthorityValueUri()).orElse(null);
+        return withPreferredViafId(lookupResult);
+    }
 
-        // try to get a better URL from Viaf from the original URL
-        if (contentAuthorityValueUri != null && !contentAuthorityValueUri.isEmpty() && contentAuthorityUri.contains("https://viaf.org")) {
-            contentAuthorityValueUri = getPreferedViafId(contentAuthorityValueUri);
+    /**
+     * Try to get a better URL from Viaf from the original URL
+     *
+     * @param lookupResult the result read from the vocabulary
+     * @return the result with the URL of the preferred institution, or with the original URL if VIAF is not available
+     */
+    private VocabularyLookupResult withPreferredViafId(VocabularyLookupResult lookupResult) {
+        String contentAuthorityValueUri = lookupResult.getAuthorityValueUri();
+        if (StringUtils.isEmpty(contentAuthorityValueUri) || lookupResult.getAuthorityUri() == null
+                || !lookupResult.getAuthorityUri().contains("https://viaf.org")) {
+            return lookupResult;
+        }
+        try {
+            return new VocabularyLookupResult(true, lookupResult.getReplacementValues(), lookupResult.getFieldTo(), lookupResult.getAuthority(),
+                    lookupResult.getAuthorityUri(), resolvePreferredViafId(contentAuthorityValueUri));
+        } catch (RemoteUnavailableException e) {
+            log.warn("Cannot resolve VIAF ID {}, the original ID is kept: {}", contentAuthorityValueUri, e.getMessage());
+            metrics.count(Counter.VIAF_FALLBACKS);
+            return new VocabularyLookupResult(true, lookupResult.getReplacementValues(), lookupResult.getFieldTo(), lookupResult.getAuthority(),
+                    lookupResult.getAuthorityUri(), contentAuthorityValueUri, true);
         }
+    }
 
-        // now run through all fields to find the right one where to put the replaced value to
-        Optional<ExtendedFieldInstance> replacementField = result.getFieldForDefinitionName(entry.getContentReplace());
-        if (replacementField.isPresent()) {
-            List<String> replacementValues = replacementField.get()
-                    .getExtendedValues()
-                    .stream()
-                    .flatMap(v -> v.getTranslations().stream())
-                    .map(TranslationInstance::getValue)
-                    .toList();
+    /**
+     * Search a record containing the value in the local copy of the vocabulary or in the vocabulary server
+     *
+     * @param resolved the resolved vocabulary
+     * @param entry the replacement entry
+     * @param value the value to search
+     * @return the lookup result of the first matching record, {@link VocabularyLookupResult#NOT_FOUND} or
+     *         {@link VocabularyLookupResult#FILTERED} if the value was rejected by a Bloom filter
+     * @throws RemoteUnavailableException if the vocabulary server did not answer in time
+     */
+    private VocabularyLookupResult findRecord(ResolvedVocabulary resolved, ReplacementEntry entry, String value) throws RemoteUnavailableException {
+        if (entry.isSnapshot()) {
+            return getSnapshot(resolved, entry).find(value);
+        }
+        List<ExtendedVocabularyRecord> results;
+        if (entry.isPrefetch()) {
+            results = getIndex(resolved, entry).find(value);
+        } else if (isDefinitelyMissing(resolved, entry, value)) {
+            metrics.count(Counter.FILTERED_LOOKUPS);
+            return VocabularyLookupResult.FILTERED;
+        } else {
+            long start = System.nanoTime();
+            try {
+                results = findExactMatches(resolved, value);
+            } finally {
+                ReplacementMetrics.getInstance().recordRemoteLookup(entry.getVocabulary(), System.nanoTime() - start);
+            }
+        }
+        if (results.size() > 1) {
+            log.warn("No unique result found, using first result");
+        }
+        return results.isEmpty() ? VocabularyLookupResult.NOT_FOUND : resolved.createLookupResult(results.get(0));
+    }
 
-            for (String replacementValue : replacementValues) {
-                Metadata md = new Metadata(prefs.getMetadataTypeByName(fieldTo));
-                md.setValue(replacementValue);
+    private ResolvedVocabulary getResolvedVocabulary(ReplacementEntry entry) throws RemoteUnavailableException {
+        // vocabulary, schema and field definitions are resolved only once per entry, failed requests are repeated for the next value
+        ResolvedVocabulary resolved = resolvedVocabularies.get(entry);
+        if (resolved == null) {
+            resolved = vocabularyBreaker.call(vocabularyLimiter, () -> new ResolvedVocabulary(entry), configuration.getSearchTimeout(), deadline);
+            ResolvedVocabulary existing = resolvedVocabularies.putIfAbsent(entry, resolved);
+            if (existing != null) {
+                resolved = existing;
+            }
+        }
+        return resolved;
+    }
 
-                // if an authority value url is given in the vocabulary take this
-                if (!StringUtils.isEmpty(contentAuthorityValueUri)) {
-                    md.setAuthorityID(contentAuthority);
-                    md.setAuthorityURI(contentAuthorityUri);
-                    md.setAuthorityValue(contentAuthorityValueUri);
-                } else {
-                    // if not authority is contained in the vocabulary take it from the original record
-                    md.setAuthorityID(originalMetadata.getAuthorityID());
-                    md.setAuthorityURI(originalMetadata.getAuthorityURI());
-                    md.setAuthorityValue(originalMetadata.getAuthorityValue());
+    private VocabularyIndex getIndex(ResolvedVocabulary resolved, ReplacementEntry entry) throws RemoteUnavailableException {
+        VocabularyDownload.DownloadSettings settings = configuration.getPrefetchSettings();
+        return getLocalCopy(entry, settings, () -> VocabularyIndex.getIndex(resolved, settings));
+    }
+
+    private VocabularySnapshot getSnapshot(ResolvedVocabulary resolved, ReplacementEntry entry) throws RemoteUnavailableException {
+        VocabularyDownload.DownloadSettings settings = configuration.getSnapshotSettings();
+        return getLocalCopy(entry, settings, () -> VocabularySnapshot.get(resolved, settings, configuration.getSnapshotDirectory()));
+    }
+
+    /**
+     * Get the local copy of the vocabulary of an entry. The copy is requested once per run within the limits of the vocabulary server, as it
+     * may have to be downloaded or checked for changes first. Later values of the run use the same copy without a remote request.
+     *
+     * @param entry the replacement entry
+     * @param settings the download settings of the copy
+     * @param request returns the copy, downloads the vocabulary if necessary
+     * @return the local copy
+     * @throws RemoteUnavailableException if the copy could not be created within the timeout of the download settings
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T getLocalCopy(ReplacementEntry entry, VocabularyDownload.DownloadSettings settings, RemoteCall<T, ? extends Exception> request)
+            throws RemoteUnavailableException {
+        T copy = (T) localCopies.get(entry);
+        if (copy == null) {
+            copy = vocabularyBreaker.call(vocabularyLimiter, request, settings.timeout(), deadline);
+            localCopies.put(entry, copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Check the value against the Bloom filter of the vocabulary, if the entry uses one
+     *
+     * @param resolved the resolved vocabulary
+     * @param entry the replacement entry
+     * @param value the value to search
+     * @return true if the vocabulary does not contain the value, false if it may contain it
+     */
+    private boolean isDefinitelyMissing(ResolvedVocabulary resolved, ReplacementEntry entry, String value) {
+        if (entry.getBloomFilter() <= 0 || entry.getBloomFilter() >= 1) {
+            return false;
+        }
+        VocabularyDownload.DownloadSettings settings = configuration.getBloomFilterSettings();
+        try {
+            VocabularyBloomFilter filter =
+                    getLocalCopy(entry, settings, () -> VocabularyBloomFilter.getFilter(resolved, entry.getBloomFilter(), settings));
+            return !filter.mightContain(value);
+        } catch (RemoteUnavailableException e) {
+            log.warn("Cannot create filter of vocabulary {}, the value is searched: {}", entry.getVocabulary(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Search the vocabulary server page by page. The search returns all records containing the value, so the records are checked for an exact
+     * match. The search stops at the second match, as this is enough to detect that the value is not unique.
+     *
+     * @param resolved the resolved vocabulary
+     * @param value the value to search
+     * @return the first two records containing exactly the value
+     * @throws RemoteUnavailableException if the vocabulary server did not answer in time
+     */
+    private List<ExtendedVocabularyRecord> findExactMatches(ResolvedVocabulary resolved, String value) throws RemoteUnavailableException {
+        FieldDefinition searchField = resolved.getSearchField();
+        List<ExtendedVocabularyRecord> matches = new ArrayList<>(2);
+        long totalPages = 1;
+        for (int page = 0; page < totalPages && matches.size() < 2; page++) {
+            int currentPage = page;
+            var result = vocabularyBreaker.call(vocabularyLimiter, () -> VocabularyAPIManager.getInstance()
+                    .vocabularyRecords()
+                    .list(resolved.getVocabulary().getId())
+                    .search(searchField.getId() + ":" + value)
+                    .pageSize(configuration.getSearchPageSize())
+                    .page(currentPage)
+                    .request(), configuration.getSearchTimeout(), deadline);
+            totalPages = result.getPage().getTotalPages();
+            Iterator<ExtendedVocabularyRecord> records = result.getContent().iterator();
+            while (records.hasNext() && matches.size() < 2) {
+                ExtendedVocabularyRecord vocabularyRecord = records.next();
+                if (isExactMatch(vocabularyRecord, searchField, value)) {
+                    matches.add(vocabularyRecord);
                 }
-                resultList.add(md);
             }
         }
+        return matches;
     }
 
     private boolean isExactMatch(ExtendedVocabularyRecord r, FieldDefinition fieldDefinition, String value) {
@@ -387,27 +977,29 @@ public class YerushaMetadataReplacementPlugin implements IStepPluginVersion2 {
     /**
      * Method to get the URL for a viaf record from the preferred institution
      *
-     * @param oldUrl the main viaf entry url
-     * @return String with the url of the individual preferred institution (e.g. from the LOC)
+     * @param oldId the main viaf entry id
+     * @return String with the url of the individual preferred institution (e.g. from the LOC), the old id if VIAF is not available
      */
     public String getPreferedViafId(String oldId) {
-        MarcRecord recordToImport = NormDataImporter.getSingleMarcRecord("https://viaf.org/viaf/" + oldId + "/marc21.xml");
-        List<String> databases = new ArrayList<>();
-        databases.add("j9u");
-        databases.add("lc");
-        for (String database : databases) {
-            if (recordToImport != null && recordToImport.getAuthorityDatabaseUrls() != null) {
-                for (DatabaseUrl url : recordToImport.getAuthorityDatabaseUrls()) {
-                    if (url.getDatabaseCode().equalsIgnoreCase(database)) {
-                        String result = url.getMarcRecordUrl();
-                        result = result.substring(result.indexOf("processed"));
-                        return result;
-                    }
-                }
-            }
+        try {
+            return resolvePreferredViafId(oldId);
+        } catch (RemoteUnavailableException e) {
+            log.warn("Cannot resolve VIAF ID {}, the original ID is kept: {}", oldId, e.getMessage());
+            metrics.count(Counter.VIAF_FALLBACKS);
+            return oldId;
         }
-        // if no better URL could be found give back the original again
-        return oldId;
+    }
+
+    private String resolvePreferredViafId(String oldId) throws RemoteUnavailableException {
+        if (viafIdCache == null) {
+            viafIdCache = createViafIdCache();
+        }
+        return viafIdCache.getPreferredId(oldId, deadline, metrics);
+    }
+
+    private ViafIdCache createViafIdCache() {
+        return new ViafIdCache(configuration.getViafSettings(), RequestLimiter.forRemote(RequestLimiter.VIAF, configuration.getMaxViafRequests()),
+                CircuitBreaker.forRemote(RequestLimiter.VIAF, configuration.getBreakerSettings()));
     }
 
     @Override
@@ -420,39 +1012,202 @@ public class YerushaMetadataReplacementPlugin implements IStepPluginVersion2 {
         return null; //NOSONAR
     }
 
-    @Data
-    private class ReplacementConfiguration implements Serializable {
+    /**
+     * Immutable replacement plan compiled from the plugin configuration. Plans are cached by project, step and modification date of the
+     * configuration file and shared by all plugin instances.
+     */
+    @Getter
+    static class ReplacementConfiguration implements Serializable {
 
         private static final long serialVersionUID = 3079270612916051314L;
-        private List<ReplacementEntry> entryList = new ArrayList<>();
 
-        public ReplacementConfiguration(SubnodeConfiguration sub) {
+        // compiled plans per project and step
+        private static final Map<String, ReplacementConfiguration> PLANS = new ConcurrentHashMap<>();
+
+        private final long configurationModified;
+        private final List<ReplacementEntry> entryList;
+        // entries for metadata of the docstruct and for metadata groups, indexed by source field and group name
+        private final List<ReplacementEntry> metadataEntries;
+        private final Map<String, List<ReplacementEntry>> metadataEntriesByFieldFrom;
+        private final Map<String, List<ReplacementEntry>> groupEntries;
+        private final Map<String, Map<String, List<ReplacementEntry>>> groupEntriesByFieldFrom;
+        private final boolean lookupCacheEnabled;
+        private final int lookupCacheMaxEntries;
+        private final long lookupCacheTimeToLive;
+        private final VocabularyDownload.DownloadSettings prefetchSettings;
+        private final ViafIdCache.ViafSettings viafSettings;
+        private final int maxVocabularyRequests;
+        private final int maxViafRequests;
+        private final boolean fingerprintEnabled;
+        private final long fingerprintMaxAge;
+        private final boolean reverseIndexEnabled;
+        private final Path reverseIndexDirectory;
+        private final Path snapshotDirectory;
+        private final VocabularyDownload.DownloadSettings snapshotSettings;
+        private final int searchPageSize;
+        private final long searchTimeout;
+        private final long processTimeout;
+        private final CircuitBreaker.BreakerSettings breakerSettings;
+        private final boolean logicalTreeEnabled;
+        private final int logicalTreeParallelism;
+        private final VocabularyDownload.DownloadSettings bloomFilterSettings;
+
+        // rulesets whose metadata types were already checked against the configured fields
+        private final transient Set<String> validatedRulesets = ConcurrentHashMap.newKeySet();
+
+        public ReplacementConfiguration(HierarchicalConfiguration sub, long configurationModified) {
+            this.configurationModified = configurationModified;
+            lookupCacheEnabled = sub.getBoolean("lookupCache/enabled", true);
+            lookupCacheMaxEntries = sub.getInt("lookupCache/maxEntries", 10000);
+            lookupCacheTimeToLive = sub.getLong("lookupCache/timeToLive", 600);
+            prefetchSettings = readDownloadSettings(sub, "prefetch", 500, 3600);
+            String viafCacheFile = sub.getString("viaf/cacheFile", "");
+            if (StringUtils.isBlank(viafCacheFile)) {
+                viafCacheFile = ConfigurationHelper.getInstance().getGoobiFolder() + "cache/metadata_replacement_viaf.txt";
+            }
+            viafSettings = new ViafIdCache.ViafSettings(sub.getBoolean("viaf/cacheEnabled", true), Paths.get(viafCacheFile),
+                    sub.getLong("viaf/timeToLive", 30), sub.getLong("viaf/negativeTimeToLive", 7),
+                    sub.getString("viaf/resolver", NormDataViafResolver.class.getName()), sub.getLong("viaf/timeout", 15));
+            maxVocabularyRequests = sub.getInt("concurrency/maxVocabularyRequests", 8);
+            maxViafRequests = sub.getInt("concurrency/maxViafRequests", 2);
+            fingerprintMaxAge = sub.getLong("fingerprint/maxAge", 7);
+            reverseIndexEnabled = sub.getBoolean("reverseIndex/enabled", false);
+            String directory = sub.getString("reverseIndex/directory", "");
+            if (StringUtils.isBlank(directory)) {
+                directory = ConfigurationHelper.getInstance().getGoobiFolder() + "cache/metadata_replacement_index/";
+            }
+            reverseIndexDirectory = Paths.get(directory);
+            directory = sub.getString("snapshot/directory", "");
+            if (StringUtils.isBlank(directory)) {
+                directory = ConfigurationHelper.getInstance().getGoobiFolder() + "cache/metadata_replacement_snapshots/";
+            }
+            snapshotDirectory = Paths.get(directory);
+            snapshotSettings = readDownloadSettings(sub, "snapshot", 1000, 86400);
+            searchPageSize = sub.getInt("search/pageSize", 20);
+            searchTimeout = sub.getLong("search/timeout", 30);
+            processTimeout = sub.getLong("processTimeout", 600);
+            breakerSettings = new CircuitBreaker.BreakerSettings(sub.getInt("circuitBreaker/failureThreshold", 5),
+                    sub.getLong("circuitBreaker/openDuration", 60));
+            logicalTreeEnabled = sub.getBoolean("logicalTree/enabled", false);
+            logicalTreeParallelism = sub.getInt("logicalTree/parallelism", 4);
+            bloomFilterSettings = readDownloadSettings(sub, "bloomFilter", 1000, 3600);
+
+            List<ReplacementEntry> allEntries = new ArrayList<>();
+            List<ReplacementEntry> docstructEntries = new ArrayList<>();
+            Map<String, List<ReplacementEntry>> docstructEntriesByFieldFrom = new HashMap<>();
+            Map<String, List<ReplacementEntry>> entriesByGroup = new HashMap<>();
+            Map<String, Map<String, List<ReplacementEntry>>> entriesByGroupAndFieldFrom = new HashMap<>();
             List<HierarchicalConfiguration> entries = sub.configurationsAt("entry");
             for (HierarchicalConfiguration hc : entries) {
                 ReplacementEntry entry = new ReplacementEntry(hc);
-                entryList.add(entry);
+                entry.validate();
+                allEntries.add(entry);
+                if (StringUtils.isNotBlank(entry.getMetadataGroup())) {
+                    entriesByGroup.computeIfAbsent(entry.getMetadataGroup(), g -> new ArrayList<>()).add(entry);
+                    entriesByGroupAndFieldFrom.computeIfAbsent(entry.getMetadataGroup(), g -> new HashMap<>())
+                            .computeIfAbsent(entry.getFieldFrom(), f -> new ArrayList<>())
+                            .add(entry);
+                } else {
+                    docstructEntries.add(entry);
+                    docstructEntriesByFieldFrom.computeIfAbsent(entry.getFieldFrom(), f -> new ArrayList<>()).add(entry);
+                }
+            }
+            entryList = List.copyOf(allEntries);
+            // the vocabulary API provides no version, so it is taken from the local copies. Without, all records would have to be downloaded.
+            boolean withoutLocalCopy = allEntries.stream().anyMatch(e -> !e.isPrefetch() && !e.isSnapshot());
+            if (sub.getBoolean("fingerprint/enabled", false) && withoutLocalCopy) {
+                log.warn("The fingerprint is disabled, because it requires prefetch or snapshot for all entries");
+            }
+            fingerprintEnabled = sub.getBoolean("fingerprint/enabled", false) && !withoutLocalCopy;
+            metadataEntries = List.copyOf(docstructEntries);
+            metadataEntriesByFieldFrom = copyOf(docstructEntriesByFieldFrom);
+            groupEntries = copyOf(entriesByGroup);
+            Map<String, Map<String, List<ReplacementEntry>>> groupIndex = new HashMap<>();
+            entriesByGroupAndFieldFrom.forEach((group, byFieldFrom) -> groupIndex.put(group, copyOf(byFieldFrom)));
+            groupEntriesByFieldFrom = Map.copyOf(groupIndex);
+        }
+
+        private static VocabularyDownload.DownloadSettings readDownloadSettings(HierarchicalConfiguration sub, String element, int pageSize,
+                long maxAge) {
+            return new VocabularyDownload.DownloadSettings(sub.getInt(element + "/pageSize", pageSize), sub.getLong(element + "/checkInterval", 60),
+                    sub.getLong(element + "/maxAge", maxAge), sub.getLong(element + "/timeout", 300));
+        }
+
+        /**
+         * Get the compiled plan for a step. The configuration is only read again, if the configuration file was changed.
+         *
+         * @param title the plugin title
+         * @param step the step to get the configuration for
+         * @return the plan
+         */
+        static ReplacementConfiguration forStep(String title, Step step) {
+            long modified = getConfigurationModified(title);
+            String key = step.getProzess().getProjekt().getTitel() + "\u0000" + step.getTitel();
+            return PLANS.compute(key, (k, plan) -> {
+                if (plan != null && plan.configurationModified == modified) {
+                    return plan;
+                }
+                return new ReplacementConfiguration(ConfigPlugins.getProjectAndStepConfig(title, step), modified);
+            });
+        }
+
+        private static long getConfigurationModified(String title) {
+            Path configurationFile = Paths.get(ConfigurationHelper.getInstance().getConfigurationFolder(), "plugin_" + title + ".xml");
+            try {
+                return Files.getLastModifiedTime(configurationFile).toMillis();
+            } catch (IOException e) {
+                // without modification date the configuration is read every time
+                return System.nanoTime();
             }
         }
+
+        /**
+         * Get the metadata types of a ruleset for a single run. The configured fields are validated only on the first run with the ruleset.
+         *
+         * @param rulesetName the name of the ruleset file
+         * @param prefs the loaded ruleset
+         * @return the types
+         */
+        RulesetTypes getRulesetTypes(String rulesetName, Prefs prefs) {
+            RulesetTypes types = new RulesetTypes(prefs);
+            if (validatedRulesets.add(rulesetName)) {
+                types.validate(entryList);
+            }
+            return types;
+        }
+
+        private static Map<String, List<ReplacementEntry>> copyOf(Map<String, List<ReplacementEntry>> map) {
+            Map<String, List<ReplacementEntry>> copy = new HashMap<>();
+            map.forEach((key, list) -> copy.put(key, List.copyOf(list)));
+            return Map.copyOf(copy);
+        }
     }
 
-    @Data
-    private class ReplacementEntry implements Serializable {
+    @Getter
+    static class ReplacementEntry implements Serializable {
         private static final long serialVersionUID = -5685314086466688260L;
-        private String fieldFrom;
-        private String fieldTo;
-        private String fieldToDynamic;
-        private String metadataGroup;
-        private String vocabulary;
-        private String contentSearch;
-        private String contentReplace;
-        private String contentAuthority;
-        private String contentAuthorityUri;
-        private String contentAuthorityValueUri;
-        private boolean duplicateIfMissing = false;
-        private boolean deleteExistingFieldTo = true;
-        private boolean removeDuplicatedFieldTo = false;
-        private String metadataDelimiter;
-        private String vocabularyDelimiter;
+        private final String fieldFrom;
+        private final String fieldTo;
+        private final String fieldToDynamic;
+        private final String metadataGroup;
+        private final String vocabulary;
+        private final String contentSearch;
+        private final String contentReplace;
+        private final String contentAuthority;
+        private final String contentAuthorityUri;
+        private final String contentAuthorityValueUri;
+        private final boolean duplicateIfMissing;
+        private final boolean deleteExistingFieldTo;
+        private final boolean removeDuplicatedFieldTo;
+        private final String metadataDelimiter;
+        private final String vocabularyDelimiter;
+        private final boolean useLookupCache;
+        private final boolean prefetch;
+        private final boolean snapshot;
+        // false positive rate of the Bloom filter, 0 if no filter is used
+        private final double bloomFilter;
+        // compiled metadataDelimiter, null if the values are not split
+        private final Pattern metadataSplitter;
 
         public ReplacementEntry(HierarchicalConfiguration sub) {
             fieldFrom = sub.getString("fieldFrom");
@@ -470,6 +1225,42 @@ public class YerushaMetadataReplacementPlugin implements IStepPluginVersion2 {
             metadataDelimiter = sub.getString("metadataDelimiter", "");
             vocabularyDelimiter = sub.getString("vocabularyDelimiter", "");
             metadataGroup = sub.getString("metadataGroup", null);
+            useLookupCache = sub.getBoolean("useLookupCache", true);
+            prefetch = sub.getBoolean("prefetch", false);
+            snapshot = sub.getBoolean("snapshot", false);
+            bloomFilter = sub.getDouble("bloomFilter", 0);
+            // the delimiter is a literal text, so characters like | or . are not interpreted as regular expression
+            metadataSplitter = StringUtils.isEmpty(metadataDelimiter) ? null : Pattern.compile(Pattern.quote(metadataDelimiter));
+        }
+
+        /**
+         * Split a value at the configured delimiter
+         *
+         * @param value the value of the original metadata
+         * @return the separated values, or the value itself, if no delimiter is configured
+         */
+        String[] split(String value) {
+            if (metadataSplitter == null) {
+                return new String[] { value };
+            }
+            return metadataSplitter.split(value);
+        }
+
+        private void validate() {
+            if (StringUtils.isBlank(fieldFrom) || StringUtils.isBlank(fieldTo)) {
+                log.warn("Replacement entry without fieldFrom or fieldTo: {} -> {}", fieldFrom, fieldTo);
+            }
+            if (StringUtils.isBlank(vocabulary) || StringUtils.isBlank(contentSearch) || StringUtils.isBlank(contentReplace)) {
+                log.warn("Replacement entry for {} without vocabulary, contentSearch or contentReplace", fieldFrom);
+            }
+            if (prefetch && snapshot) {
+                log.warn("Replacement entry for {} uses prefetch and snapshot, the snapshot is used", fieldFrom);
+            }
+            if (bloomFilter < 0 || bloomFilter >= 1) {
+                log.warn("Replacement entry for {} has an invalid false positive rate {}, the Bloom filter is not used", fieldFrom, bloomFilter);
+            } else if (bloomFilter > 0 && (prefetch || snapshot)) {
+                log.debug("Replacement entry for {} searches a complete copy of the vocabulary, the Bloom filter is not used", fieldFrom);
+            }
         }
     }
 
@@ -0,0 +1,68 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class KeyValueFileStoreTest {
+
+    private static final List<String> SPECIAL_VALUES = List.of("tab\there", "line\nbreak", "carriage\rreturn", "back\\slash", "literal \\t and \\n",
+            "trailing backslash\\", "\\", "\t", "=value", "ירושלים", "東京 🕍");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEscapedKeysAndValuesAreRestored() {
+        Path file = folder.getRoot().toPath().resolve("store.txt");
+        KeyValueFileStore store = new KeyValueFileStore(file);
+        Map<String, String> newValues = new HashMap<>();
+        for (String text : SPECIAL_VALUES) {
+            store.put(text, "value of " + text);
+            newValues.put("key of " + text, text);
+        }
+        store.putAll(newValues);
+
+        KeyValueFileStore loaded = new KeyValueFileStore(file);
+        assertEquals(SPECIAL_VALUES.size() * 2, loaded.size());
+        for (String text : SPECIAL_VALUES) {
+            assertEquals("value of " + text, loaded.get(text).value());
+            assertEquals(text, loaded.get("key of " + text).value());
+        }
+    }
+
+    @Test
+    public void testNullAndEmptyValues() {
+        Path file = folder.getRoot().toPath().resolve("store.txt");
+        KeyValueFileStore store = new KeyValueFileStore(file);
+        store.put("null", null);
+        store.put("empty", "");
+
+        KeyValueFileStore loaded = new KeyValueFileStore(file);
+        assertNull(loaded.get("null").value());
+        assertEquals("", loaded.get("empty").value());
+        assertNull(loaded.get("missing"));
+    }
+
+    @Test
+    public void testRemovedKeys() {
+        Path file = folder.getRoot().toPath().resolve("store.txt");
+        KeyValueFileStore store = new KeyValueFileStore(file);
+        store.put("tab\tkey", "first");
+        store.put("kept", "second");
+        store.remove("tab\tkey");
+
+        KeyValueFileStore loaded = new KeyValueFileStore(file);
+        assertEquals(1, loaded.size());
+        assertNull(loaded.get("tab\tkey"));
+        assertEquals("second", loaded.get("kept").value());
+    }
+}
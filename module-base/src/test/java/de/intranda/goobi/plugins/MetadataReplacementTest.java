@@ -0,0 +1,241 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.intranda.goobi.plugins.YerushaMetadataReplacementPlugin.ReplacementConfiguration;
+import de.intranda.goobi.plugins.YerushaMetadataReplacementPlugin.ReplacementEntry;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataGroup;
+import ugh.dl.Prefs;
+
+/**
+ * Runs the replacement on a small docstruct with the vocabulary replaced by a map. Each case is run twice: once with the values resolved on
+ * demand while the metadata is changed, like before the values were collected, and once with all values collected and resolved first.
+ */
+public class MetadataReplacementTest {
+
+    private static final String GEONAMES = "http://www.geonames.org/";
+
+    private static Prefs prefs;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadRuleset() throws Exception {
+        prefs = new Prefs();
+        prefs.loadPrefs(getResource("replacement_ruleset.xml").toString());
+    }
+
+    @Test
+    public void testDelimiterSplitting() throws Exception {
+        // the delimiter is literal, a | must not split between all characters
+        String entry = createEntry(null, "<metadataDelimiter>|</metadataDelimiter>");
+        for (boolean resolveFirst : new boolean[] { false, true }) {
+            DocStruct docstruct = createDocStruct();
+            addMetadata(docstruct, "originalPlace", "Berlin| Paris |Berlin");
+            replace(entry, docstruct, resolveFirst);
+            assertEquals(List.of("BERLIN", "PARIS"), getValues(docstruct.getAllMetadata(), "Place"));
+        }
+    }
+
+    @Test
+    public void testDuplicateIfMissing() throws Exception {
+        for (boolean resolveFirst : new boolean[] { false, true }) {
+            DocStruct docstruct = createDocStruct();
+            Metadata original = addMetadata(docstruct, "originalPlace", "Atlantis; Berlin");
+            original.setAuthorityID("viaf");
+            replace(createEntry(null, "<metadataDelimiter>;</metadataDelimiter><duplicateIfMissing>true</duplicateIfMissing>"), docstruct,
+                    resolveFirst);
+            List<Metadata> places = getMetadata(docstruct.getAllMetadata(), "Place");
+            assertEquals(List.of("Atlantis", "BERLIN"), getValues(places, "Place"));
+            // the copied value keeps the authority of the original metadata, the found value gets the one of the vocabulary
+            assertEquals("viaf", places.get(0).getAuthorityID());
+            assertEquals("geonames", places.get(1).getAuthorityID());
+
+            docstruct = createDocStruct();
+            addMetadata(docstruct, "originalPlace", "Atlantis; Berlin");
+            replace(createEntry(null, "<metadataDelimiter>;</metadataDelimiter>"), docstruct, resolveFirst);
+            assertEquals(List.of("BERLIN"), getValues(docstruct.getAllMetadata(), "Place"));
+        }
+    }
+
+    @Test
+    public void testDeleteExistingFieldTo() throws Exception {
+        for (boolean resolveFirst : new boolean[] { false, true }) {
+            DocStruct docstruct = createDocStruct();
+            addMetadata(docstruct, "Place", "Rome");
+            addMetadata(docstruct, "originalPlace", "Berlin");
+            replace(createEntry(null, ""), docstruct, resolveFirst);
+            assertEquals(List.of("BERLIN"), getValues(docstruct.getAllMetadata(), "Place"));
+
+            docstruct = createDocStruct();
+            addMetadata(docstruct, "Place", "Rome");
+            addMetadata(docstruct, "Place", "BERLIN");
+            addMetadata(docstruct, "originalPlace", "Berlin");
+            replace(createEntry(null, "<deleteExistingFieldTo>false</deleteExistingFieldTo>"), docstruct, resolveFirst);
+            // the existing value is not added a second time
+            assertEquals(List.of("Rome", "BERLIN"), getValues(docstruct.getAllMetadata(), "Place"));
+        }
+    }
+
+    @Test
+    public void testRemoveDuplicatedFieldTo() throws Exception {
+        for (boolean removeDuplicates : new boolean[] { false, true }) {
+            for (boolean resolveFirst : new boolean[] { false, true }) {
+                DocStruct docstruct = createDocStruct();
+                addMetadata(docstruct, "Place", "Rome");
+                addMetadata(docstruct, "Place", "Rome");
+                addMetadata(docstruct, "originalPlace", "Berlin");
+                replace(createEntry(null, "<deleteExistingFieldTo>false</deleteExistingFieldTo><removeDuplicatedFieldTo>" + removeDuplicates
+                        + "</removeDuplicatedFieldTo>"), docstruct, resolveFirst);
+                List<String> expected = removeDuplicates ? List.of("Rome", "BERLIN") : List.of("Rome", "Rome", "BERLIN");
+                assertEquals(expected, getValues(docstruct.getAllMetadata(), "Place"));
+            }
+        }
+    }
+
+    @Test
+    public void testFieldToDynamic() throws Exception {
+        for (boolean resolveFirst : new boolean[] { false, true }) {
+            DocStruct docstruct = createDocStruct();
+            addMetadata(docstruct, "originalPlace", "Jerusalem; Berlin");
+            replace(createEntry(null, "<metadataDelimiter>;</metadataDelimiter><fieldToDynamic>type</fieldToDynamic>"), docstruct, resolveFirst);
+            // the record defines the type, records without type use fieldTo
+            assertEquals(List.of("JERUSALEM"), getValues(docstruct.getAllMetadata(), "Country"));
+            assertEquals(List.of("BERLIN"), getValues(docstruct.getAllMetadata(), "Place"));
+
+            docstruct = createDocStruct();
+            addMetadata(docstruct, "originalPlace", "Jerusalem");
+            replace(createEntry(null, ""), docstruct, resolveFirst);
+            assertEquals(List.of(), getValues(docstruct.getAllMetadata(), "Country"));
+            assertEquals(List.of("JERUSALEM"), getValues(docstruct.getAllMetadata(), "Place"));
+        }
+    }
+
+    @Test
+    public void testMetadataGroup() throws Exception {
+        String entries = createEntry("Location", "<metadataDelimiter>;</metadataDelimiter><duplicateIfMissing>true</duplicateIfMissing>")
+                + createEntry(null, "");
+        for (boolean resolveFirst : new boolean[] { false, true }) {
+            DocStruct docstruct = createDocStruct();
+            addMetadata(docstruct, "originalPlace", "Paris");
+            MetadataGroup first = addGroup(docstruct, "Berlin; Atlantis");
+            MetadataGroup second = addGroup(docstruct, "Berlin");
+            replace(entries, docstruct, resolveFirst);
+            // each group is changed on its own, the metadata of the docstruct only by the entry without group
+            assertEquals(List.of("BERLIN", "Atlantis"), getValues(first.getMetadataList(), "Place"));
+            assertEquals(List.of("BERLIN"), getValues(second.getMetadataList(), "Place"));
+            assertEquals(List.of("PARIS"), getValues(docstruct.getAllMetadata(), "Place"));
+        }
+    }
+
+    private void replace(String entries, DocStruct docstruct, boolean resolveFirst) throws Exception {
+        Path directory = folder.newFolder().toPath();
+        String xml = "<config_plugin><config><project>*</project><step>*</step><lookupCache><enabled>false</enabled></lookupCache>"
+                + "<viaf><cacheEnabled>false</cacheEnabled><cacheFile>" + directory.resolve("viaf.txt") + "</cacheFile></viaf>"
+                + "<reverseIndex><directory>" + directory.resolve("index") + "</directory></reverseIndex>"
+                + "<snapshot><directory>" + directory.resolve("snapshots") + "</directory></snapshot>"
+                + "<concurrency><maxVocabularyRequests>1</maxVocabularyRequests></concurrency>" + entries + "</config></config_plugin>";
+        XMLConfiguration config = new XMLConfiguration();
+        config.setExpressionEngine(new XPathExpressionEngine());
+        config.load(new StringReader(xml));
+        ReplacementConfiguration configuration = new ReplacementConfiguration(config.configurationAt("config"), 0);
+
+        YerushaMetadataReplacementPlugin plugin = new YerushaMetadataReplacementPlugin();
+        plugin.initialize(configuration, MetadataReplacementTest::search);
+        if (resolveFirst) {
+            Map<ReplacementEntry, Set<String>> values = plugin.collectValues(List.of(docstruct));
+            plugin.resolveValues(values);
+        }
+        plugin.changeDocStruct(new RulesetTypes(prefs), docstruct);
+    }
+
+    /**
+     * Vocabulary of the tests: Berlin and Paris are places, Jerusalem is a record with the type Country
+     */
+    private static VocabularyLookupResult search(ReplacementEntry entry, String value) {
+        return switch (value) {
+            case "Berlin", "Paris" -> new VocabularyLookupResult(true, List.of(value.toUpperCase()), null, "geonames", GEONAMES, GEONAMES + value);
+            case "Jerusalem" -> new VocabularyLookupResult(true, List.of(value.toUpperCase()), "Country", "geonames", GEONAMES, GEONAMES + value);
+            default -> VocabularyLookupResult.NOT_FOUND;
+        };
+    }
+
+    private static String createEntry(String group, String options) {
+        return "<entry>" + (group == null ? "" : "<metadataGroup>" + group + "</metadataGroup>")
+                + "<fieldFrom>originalPlace</fieldFrom><fieldTo>Place</fieldTo><vocabulary>Places</vocabulary>"
+                + "<contentSearch>original value</contentSearch><contentReplace>corrected value</contentReplace>" + options + "</entry>";
+    }
+
+    private static DocStruct createDocStruct() throws Exception {
+        DigitalDocument document = new DigitalDocument();
+        DocStruct docstruct = document.createDocStruct(prefs.getDocStrctTypeByName("Monograph"));
+        document.setLogicalDocStruct(docstruct);
+        return docstruct;
+    }
+
+    private static Metadata addMetadata(DocStruct docstruct, String type, String value) throws Exception {
+        Metadata md = new Metadata(prefs.getMetadataTypeByName(type));
+        md.setValue(value);
+        docstruct.addMetadata(md);
+        return md;
+    }
+
+    private static MetadataGroup addGroup(DocStruct docstruct, String originalPlace) throws Exception {
+        MetadataGroup group = new MetadataGroup(prefs.getMetadataGroupTypeByName("Location"));
+        // a new group may already contain empty metadata of each type
+        List<Metadata> places = group.getMetadataByType("originalPlace");
+        if (places.isEmpty()) {
+            Metadata md = new Metadata(prefs.getMetadataTypeByName("originalPlace"));
+            md.setValue(originalPlace);
+            group.addMetadata(md);
+        } else {
+            places.get(0).setValue(originalPlace);
+        }
+        docstruct.addMetadataGroup(group);
+        return group;
+    }
+
+    private static List<Metadata> getMetadata(List<Metadata> metadataList, String type) {
+        List<Metadata> result = new ArrayList<>();
+        if (metadataList != null) {
+            for (Metadata md : metadataList) {
+                if (type.equals(md.getType().getName())) {
+                    result.add(md);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<String> getValues(List<Metadata> metadataList, String type) {
+        List<String> values = new ArrayList<>();
+        for (Metadata md : getMetadata(metadataList, type)) {
+            values.add(md.getValue());
+        }
+        return values;
+    }
+
+    private static Path getResource(String name) throws URISyntaxException {
+        return Paths.get(MetadataReplacementTest.class.getResource("/" + name).toURI());
+    }
+}
@@ -0,0 +1,60 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class VocabularyBloomFilterTest {
+
+    private static final String[] NAMES = { "Jerusalem", "ירושלים", "Köln", "東京", "Łódź", "🕍 Synagoge" };
+
+    @Test
+    public void testNoFalseNegatives() {
+        List<String> values = createValues(0, 100000);
+        VocabularyBloomFilter filter = VocabularyBloomFilter.create(values, 0.01);
+        for (String value : values) {
+            assertTrue(value, filter.mightContain(value));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        VocabularyBloomFilter filter = VocabularyBloomFilter.create(createValues(0, 100000), 0.01);
+        int accepted = 0;
+        for (String value : createValues(100000, 100000)) {
+            if (filter.mightContain(value)) {
+                accepted++;
+            }
+        }
+        assertTrue("False positive rate " + accepted / 100000.0, accepted < 2000);
+    }
+
+    @Test
+    public void testEmptyFilter() {
+        VocabularyBloomFilter filter = VocabularyBloomFilter.create(Collections.emptyList(), 0.01);
+        assertFalse(filter.mightContain("Jerusalem"));
+        assertFalse(filter.mightContain(""));
+    }
+
+    @Test
+    public void testRejectedValuesAreNotCached() {
+        // the filter may be outdated, so only a search of the vocabulary can confirm a missing value
+        assertFalse(VocabularyLookupResult.FILTERED.isFound());
+        assertFalse(VocabularyLookupResult.FILTERED.isCacheable());
+        assertTrue(VocabularyLookupResult.NOT_FOUND.isCacheable());
+        assertFalse(VocabularyLookupResult.UNAVAILABLE.isCacheable());
+    }
+
+    private static List<String> createValues(int start, int count) {
+        List<String> values = new ArrayList<>(count);
+        for (int i = start; i < start + count; i++) {
+            values.add(NAMES[i % NAMES.length] + " " + i);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,84 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class VocabularySnapshotTest {
+
+    private static final String[] NAMES = { "Jerusalem", "ירושלים", "Köln", "Kö", "東京", "Łódź", "🕍 Synagoge", "a", "", "Zürich" };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFindReturnsFirstRecordOfEachValue() throws IOException {
+        Path snapshotFile = folder.getRoot().toPath().resolve("vocabulary.snapshot");
+        Map<String, VocabularyLookupResult> expected = new HashMap<>();
+        Random random = new Random(42);
+        try (VocabularySnapshot.Writer writer = new VocabularySnapshot.Writer(snapshotFile)) {
+            for (int i = 0; i < 5000; i++) {
+                // values are shared by several records, the first record in the order of the vocabulary is found
+                List<String> values = List.of(NAMES[random.nextInt(NAMES.length)] + " " + random.nextInt(500), NAMES[random.nextInt(NAMES.length)]);
+                VocabularyLookupResult result = new VocabularyLookupResult(true, List.of("Record " + i, "רשומה " + i), i % 3 == 0 ? null : "Place",
+                        "viaf", "https://viaf.org/viaf/", String.valueOf(i));
+                writer.add(values, result);
+                values.forEach(value -> expected.putIfAbsent(value, result));
+            }
+            writer.finish(new VocabularyDownload(5000, 1234, System.currentTimeMillis()));
+        }
+
+        VocabularySnapshot snapshot = VocabularySnapshot.open(snapshotFile);
+        assertEquals(10000, snapshot.getEntryCount());
+        assertEquals("5000:1234", snapshot.getVersion());
+        expected.forEach((value, result) -> assertResult(value, result, snapshot.find(value)));
+        for (String missing : List.of("Jerusalem 500", "東", "Köl", "Zürich ", "ירושלים 1000", "zürich")) {
+            assertFalse(missing, snapshot.find(missing).isFound());
+        }
+    }
+
+    @Test
+    public void testEmptySnapshot() throws IOException {
+        Path snapshotFile = folder.getRoot().toPath().resolve("empty.snapshot");
+        try (VocabularySnapshot.Writer writer = new VocabularySnapshot.Writer(snapshotFile)) {
+            writer.finish(new VocabularyDownload(0, 0, System.currentTimeMillis()));
+        }
+
+        VocabularySnapshot snapshot = VocabularySnapshot.open(snapshotFile);
+        assertEquals(0, snapshot.getEntryCount());
+        assertFalse(snapshot.find("Jerusalem").isFound());
+    }
+
+    @Test
+    public void testUnfinishedSnapshotIsDeleted() throws IOException {
+        Path snapshotFile = folder.getRoot().toPath().resolve("unfinished.snapshot");
+        try (VocabularySnapshot.Writer writer = new VocabularySnapshot.Writer(snapshotFile)) {
+            writer.add(List.of("Jerusalem"), new VocabularyLookupResult(true, List.of("Jerusalem"), null, null, null, null));
+        }
+
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private static void assertResult(String value, VocabularyLookupResult expected, VocabularyLookupResult actual) {
+        assertEquals(value, expected.isFound(), actual.isFound());
+        assertEquals(value, expected.getReplacementValues(), actual.getReplacementValues());
+        assertEquals(value, expected.getFieldTo(), actual.getFieldTo());
+        assertEquals(value, expected.getAuthority(), actual.getAuthority());
+        assertEquals(value, expected.getAuthorityUri(), actual.getAuthorityUri());
+        assertEquals(value, expected.getAuthorityValueUri(), actual.getAuthorityValueUri());
+    }
+}
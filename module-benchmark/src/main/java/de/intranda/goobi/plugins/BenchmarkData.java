@@ -0,0 +1,151 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+
+import de.intranda.goobi.plugins.YerushaMetadataReplacementPlugin.ReplacementConfiguration;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataGroup;
+import ugh.dl.Prefs;
+import ugh.exceptions.MetadataTypeNotAllowedException;
+import ugh.exceptions.PreferencesException;
+import ugh.exceptions.TypeNotAllowedForParentException;
+
+/**
+ * Synthetic METS structures and replacement configurations for the benchmarks. The structures use the small ruleset
+ * <code>benchmark_ruleset.xml</code>, the configurations replace <code>originalPlace</code> and <code>originalSubject</code> in the docstruct
+ * or <code>originalPlace</code> in the metadata group <code>Location</code>.
+ */
+public final class BenchmarkData {
+
+    static final String DELIMITER = "; ";
+    static final String RULESET = "benchmark_ruleset.xml";
+
+    private static Prefs prefs;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Load the benchmark ruleset
+     *
+     * @return the ruleset
+     */
+    static synchronized Prefs getPrefs() throws IOException, PreferencesException {
+        if (prefs == null) {
+            Path rulesetFile = Files.createTempFile("benchmark_ruleset", ".xml");
+            try (InputStream in = BenchmarkData.class.getResourceAsStream("/" + RULESET)) {
+                Files.copy(in, rulesetFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Prefs loaded = new Prefs();
+            loaded.loadPrefs(rulesetFile.toString());
+            Files.delete(rulesetFile);
+            prefs = loaded;
+        }
+        return prefs;
+    }
+
+    /**
+     * Create the replacement configuration. All files and directories are placed in a temporary directory, so no Goobi installation is needed.
+     *
+     * @param groups true to configure entries for the metadata group, false for the docstruct
+     * @param lookupCache true to use the shared lookup cache
+     * @param maxVocabularyRequests number of concurrent searches
+     * @return the compiled configuration
+     */
+    static ReplacementConfiguration createConfiguration(boolean groups, boolean lookupCache, int maxVocabularyRequests)
+            throws ConfigurationException, IOException {
+        Path directory = Files.createTempDirectory("benchmark_metadata_replacement");
+        StringBuilder xml = new StringBuilder();
+        xml.append("<config_plugin><config><project>*</project><step>*</step>");
+        xml.append("<lookupCache><enabled>").append(lookupCache).append("</enabled><maxEntries>100000</maxEntries></lookupCache>");
+        xml.append("<viaf><cacheEnabled>false</cacheEnabled><cacheFile>").append(directory.resolve("viaf.txt")).append("</cacheFile></viaf>");
+        xml.append("<reverseIndex><directory>").append(directory.resolve("index")).append("</directory></reverseIndex>");
+        xml.append("<snapshot><directory>").append(directory.resolve("snapshots")).append("</directory></snapshot>");
+        xml.append("<concurrency><maxVocabularyRequests>").append(maxVocabularyRequests).append("</maxVocabularyRequests></concurrency>");
+        if (groups) {
+            appendEntry(xml, "Location", "originalPlace", "Place", "Places");
+        } else {
+            appendEntry(xml, null, "originalPlace", "Place", "Places");
+            appendEntry(xml, null, "originalSubject", "Subject", "Subjects");
+        }
+        xml.append("</config></config_plugin>");
+
+        XMLConfiguration config = new XMLConfiguration();
+        config.setExpressionEngine(new XPathExpressionEngine());
+        config.load(new StringReader(xml.toString()));
+        return new ReplacementConfiguration(config.configurationAt("config"), 0);
+    }
+
+    private static void appendEntry(StringBuilder xml, String group, String fieldFrom, String fieldTo, String vocabulary) {
+        xml.append("<entry>");
+        if (group != null) {
+            xml.append("<metadataGroup>").append(group).append("</metadataGroup>");
+        }
+        xml.append("<fieldFrom>").append(fieldFrom).append("</fieldFrom>");
+        xml.append("<fieldTo>").append(fieldTo).append("</fieldTo>");
+        xml.append("<vocabulary>").append(vocabulary).append("</vocabulary>");
+        xml.append("<contentSearch>original value</contentSearch><contentReplace>corrected value</contentReplace>");
+        xml.append("<metadataDelimiter>").append(DELIMITER.trim()).append("</metadataDelimiter>");
+        xml.append("<duplicateIfMissing>true</duplicateIfMissing><removeDuplicatedFieldTo>true</removeDuplicatedFieldTo>");
+        xml.append("</entry>");
+    }
+
+    /**
+     * Create a docstruct with source metadata and metadata groups
+     *
+     * @param metadataCount number of source metadata per configured field and number of metadata groups
+     * @param valuesPerMetadata number of values within each metadata, separated by the delimiter
+     * @param duplicateRatio share of metadata repeating the value of another metadata, between 0 and 1
+     * @return the docstruct
+     */
+    static DocStruct createDocStruct(int metadataCount, int valuesPerMetadata, double duplicateRatio)
+            throws IOException, PreferencesException, TypeNotAllowedForParentException, MetadataTypeNotAllowedException {
+        Prefs ruleset = getPrefs();
+        DigitalDocument document = new DigitalDocument();
+        DocStruct docstruct = document.createDocStruct(ruleset.getDocStrctTypeByName("Monograph"));
+        document.setLogicalDocStruct(docstruct);
+        int distinctValues = Math.max(1, (int) Math.round(metadataCount * (1 - duplicateRatio)));
+        for (int i = 0; i < metadataCount; i++) {
+            String place = createValue("Place ", i % distinctValues, valuesPerMetadata);
+            docstruct.addMetadata(createMetadata(ruleset, "originalPlace", place));
+            docstruct.addMetadata(createMetadata(ruleset, "originalSubject", createValue("Subject ", i % distinctValues, valuesPerMetadata)));
+
+            MetadataGroup group = new MetadataGroup(ruleset.getMetadataGroupTypeByName("Location"));
+            List<Metadata> places = group.getMetadataByType("originalPlace");
+            if (places.isEmpty()) {
+                group.addMetadata(createMetadata(ruleset, "originalPlace", place));
+            } else {
+                places.get(0).setValue(place);
+            }
+            docstruct.addMetadataGroup(group);
+        }
+        return docstruct;
+    }
+
+    private static String createValue(String prefix, int index, int valuesPerMetadata) {
+        List<String> values = new ArrayList<>(valuesPerMetadata);
+        for (int i = 0; i < valuesPerMetadata; i++) {
+            values.add(prefix + index + "-" + i);
+        }
+        return String.join(DELIMITER, values);
+    }
+
+    private static Metadata createMetadata(Prefs ruleset, String type, String value) throws MetadataTypeNotAllowedException {
+        Metadata md = new Metadata(ruleset.getMetadataTypeByName(type));
+        md.setValue(value);
+        return md;
+    }
+}
@@ -0,0 +1,76 @@
+package de.intranda.goobi.plugins;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.YerushaMetadataReplacementPlugin.ReplacementConfiguration;
+import de.intranda.goobi.plugins.YerushaMetadataReplacementPlugin.ReplacementEntry;
+import ugh.dl.DocStruct;
+
+/**
+ * Measures the resolution of all values of a process against the stub vocabulary. With the lookup cache enabled, all values are found in the
+ * cache after the first invocation, so the cached path is measured. Without cache, every invocation searches all distinct values, sequentially
+ * or by the bounded thread pool depending on the number of concurrent requests.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LookupBenchmark {
+
+    @Param({ "100", "1000" })
+    public int metadataCount;
+
+    @Param({ "1", "5" })
+    public int valuesPerMetadata;
+
+    @Param({ "0.5" })
+    public double duplicateRatio;
+
+    // duration of a single search in the stub vocabulary
+    @Param({ "0", "1000" })
+    public int latencyMicros;
+
+    @Param({ "1", "8" })
+    public int maxVocabularyRequests;
+
+    @Param({ "false", "true" })
+    public boolean lookupCache;
+
+    private YerushaMetadataReplacementPlugin plugin;
+    private Map<ReplacementEntry, Set<String>> values;
+
+    @Setup(Level.Trial)
+    public void setupPlugin() throws Exception {
+        ReplacementConfiguration configuration = BenchmarkData.createConfiguration(false, lookupCache, maxVocabularyRequests);
+        plugin = new YerushaMetadataReplacementPlugin();
+        plugin.initialize(configuration, new StubVocabularyLookup(latencyMicros, 80));
+        DocStruct docstruct = BenchmarkData.createDocStruct(metadataCount, valuesPerMetadata, duplicateRatio);
+        values = plugin.collectValues(List.of(docstruct));
+        VocabularyLookupCache.getInstance().clear();
+    }
+
+    @Benchmark
+    public void resolveValues() {
+        // a new run only replaces a few maps, so it is measured with the lookups instead of an invocation level setup
+        plugin.startRun();
+        plugin.resolveValues(values);
+    }
+}
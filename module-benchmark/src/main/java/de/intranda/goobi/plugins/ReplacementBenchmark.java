@@ -0,0 +1,101 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.YerushaMetadataReplacementPlugin.ReplacementConfiguration;
+import ugh.dl.DocStruct;
+
+/**
+ * Measures the change of the metadata of a docstruct or of its metadata groups. Each invocation changes another docstruct, because the benchmark
+ * changes it. The docstructs of an iteration are created and all their values are resolved before the iteration, so only the metadata
+ * manipulation is measured. The score is the time to change {@value #BATCH_SIZE} docstructs.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 10, batchSize = ReplacementBenchmark.BATCH_SIZE)
+@Measurement(iterations = 20, batchSize = ReplacementBenchmark.BATCH_SIZE)
+public class ReplacementBenchmark {
+
+    // number of docstructs changed in one iteration
+    static final int BATCH_SIZE = 200;
+
+    // number of source metadata per field and number of metadata groups
+    @Param({ "10", "100", "1000" })
+    public int metadataCount;
+
+    // number of values within each metadata, separated by the delimiter
+    @Param({ "1", "5" })
+    public int valuesPerMetadata;
+
+    // share of metadata repeating the value of another metadata
+    @Param({ "0.0", "0.5" })
+    public double duplicateRatio;
+
+    // share of values found in the vocabulary
+    @Param({ "80" })
+    public int foundPercent;
+
+    private YerushaMetadataReplacementPlugin metadataPlugin;
+    private YerushaMetadataReplacementPlugin groupPlugin;
+    private RulesetTypes metadataTypes;
+    private RulesetTypes groupTypes;
+    private List<DocStruct> docstructs;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setupPlugins() throws Exception {
+        ReplacementConfiguration metadataConfiguration = BenchmarkData.createConfiguration(false, false, 1);
+        metadataPlugin = new YerushaMetadataReplacementPlugin();
+        metadataPlugin.initialize(metadataConfiguration, new StubVocabularyLookup(0, foundPercent));
+        metadataTypes = metadataConfiguration.getRulesetTypes(BenchmarkData.RULESET, BenchmarkData.getPrefs());
+
+        ReplacementConfiguration groupConfiguration = BenchmarkData.createConfiguration(true, false, 1);
+        groupPlugin = new YerushaMetadataReplacementPlugin();
+        groupPlugin.initialize(groupConfiguration, new StubVocabularyLookup(0, foundPercent));
+        groupTypes = groupConfiguration.getRulesetTypes(BenchmarkData.RULESET, BenchmarkData.getPrefs());
+    }
+
+    @Setup(Level.Iteration)
+    public void createDocStructs() throws Exception {
+        docstructs = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            docstructs.add(BenchmarkData.createDocStruct(metadataCount, valuesPerMetadata, duplicateRatio));
+        }
+        next = 0;
+        for (YerushaMetadataReplacementPlugin plugin : List.of(metadataPlugin, groupPlugin)) {
+            plugin.startRun();
+            plugin.resolveValues(plugin.collectValues(docstructs));
+        }
+    }
+
+    @Benchmark
+    public DocStruct changeMetadata() {
+        DocStruct docstruct = docstructs.get(next++);
+        metadataPlugin.changeDocStruct(metadataTypes, docstruct);
+        return docstruct;
+    }
+
+    @Benchmark
+    public DocStruct changeMetadataGroups() {
+        DocStruct docstruct = docstructs.get(next++);
+        groupPlugin.changeDocStruct(groupTypes, docstruct);
+        return docstruct;
+    }
+}
@@ -0,0 +1,41 @@
+package de.intranda.goobi.plugins;
+
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import de.intranda.goobi.plugins.YerushaMetadataReplacementPlugin.ReplacementEntry;
+
+/**
+ * In-process replacement for the vocabulary server. Each search waits for the configured latency, a configurable share of the values is found
+ * and replaced by a value with authority data.
+ */
+public class StubVocabularyLookup implements VocabularyLookup {
+
+    private final long latencyNanos;
+    private final int foundPercent;
+
+    /**
+     * @param latencyMicros duration of each search in microseconds
+     * @param foundPercent share of values found in the vocabulary, between 0 and 100
+     */
+    public StubVocabularyLookup(long latencyMicros, int foundPercent) {
+        this.latencyNanos = latencyMicros * 1000;
+        this.foundPercent = foundPercent;
+    }
+
+    @Override
+    public VocabularyLookupResult search(ReplacementEntry entry, String value) {
+        if (latencyNanos > 0) {
+            long end = System.nanoTime() + latencyNanos;
+            // parkNanos can return early, so wait until the latency is reached
+            for (long remaining = latencyNanos; remaining > 0; remaining = end - System.nanoTime()) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+        if (Math.floorMod(value.hashCode(), 100) >= foundPercent) {
+            return VocabularyLookupResult.NOT_FOUND;
+        }
+        return new VocabularyLookupResult(true, List.of(value.toUpperCase()), null, "geonames", "http://www.geonames.org/",
+                "http://www.geonames.org/" + Math.floorMod(value.hashCode(), 1000000));
+    }
+}